@@ -0,0 +1,176 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.textureset.TextureSetGenerator;
+import com.dynamo.bob.textureset.TextureSetGenerator.TextureSetResult;
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Info;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+import com.google.protobuf.TextFormat;
+
+import com.dynamo.bob.pipeline.tp.AtlasBuilder.MappedAnimDesc;
+import com.dynamo.bob.pipeline.tp.AtlasBuilder.MappedAnimIterator;
+
+// Benchmarks for each step of the tpinfo -> TextureSet pipeline.
+// Run with the gc profiler (see ./utils/run_benchmark.sh) to get the allocation rates.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    static final int FRAMES_PER_ANIMATION = 16;
+    static final String RENAME_PATTERNS = "sprites/=,_nrm=_normal";
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int spriteCount;
+
+    @Param({"false", "true"})
+    public boolean polygons;
+
+    Info.Atlas info;
+    byte[] textData;
+    byte[] binaryData;
+    List<String> frameIds;
+    List<TextureSetLayout.Page> pages;
+    List<TextureSetLayout.Layout> layouts;
+    List<MappedAnimDesc> animations;
+    AtlasDesc.Builder desc;
+    byte[] descData;
+    PreparedLayout preparedLayout;
+    FrameIndex frameIndex;
+
+    @Setup(Level.Trial)
+    public void setup() throws CompileExceptionError {
+        info = SyntheticAtlas.createInfo(spriteCount, polygons);
+        textData = TextFormat.printToString(info).getBytes(StandardCharsets.UTF_8);
+        binaryData = info.toByteArray();
+
+        frameIds = Atlas.renameFrameIds(AtlasBuilder.getFrameIds(info), RENAME_PATTERNS);
+        frameIndex = new FrameIndex(frameIds);
+        pages = AtlasBuilder.createPages(info);
+        layouts = TextureSetLayout.createTextureSet(pages);
+
+        desc = SyntheticAtlas.createDesc(spriteCount, FRAMES_PER_ANIMATION, RENAME_PATTERNS);
+        animations = AtlasBuilder.createAnimations(desc, frameIds, new RenamePatterns(RENAME_PATTERNS));
+        descData = desc.build().toByteArray();
+        try {
+            preparedLayout = PreparedLayout.create("/bench.tpinfo", binaryData, 0, 0.0f);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Benchmark
+    public Info.Atlas loadText() throws IOException {
+        return Loader.load(textData);
+    }
+
+    @Benchmark
+    public Info.Atlas loadBinary() throws IOException {
+        return Loader.load(binaryData);
+    }
+
+    @Benchmark
+    public List<TextureSetLayout.Page> readPagesStreaming() throws IOException {
+        return InfoReader.readPages(textData);
+    }
+
+    @Benchmark
+    public List<TextureSetLayout.Page> createPages() {
+        return AtlasBuilder.createPages(info);
+    }
+
+    // The flat page geometry only, without the SourceImage adapters
+    @Benchmark
+    public void createPageGeometry(Blackhole bh) {
+        int index = 0;
+        for (Info.Page page : info.getPagesList()) {
+            bh.consume(PageGeometry.create(index++, page));
+        }
+    }
+
+    @Benchmark
+    public List<String> renameFrameIds() throws CompileExceptionError {
+        return Atlas.renameFrameIds(AtlasBuilder.getFrameIds(info), RENAME_PATTERNS);
+    }
+
+    // Renames the frames and the animation images, as in AtlasBuilder.build()
+    @Benchmark
+    public List<MappedAnimDesc> renameAndCreateAnimations() throws CompileExceptionError {
+        RenamePatterns renames = new RenamePatterns(RENAME_PATTERNS);
+        List<String> renamedIds = renames.rename(AtlasBuilder.getFrameIds(info));
+        return AtlasBuilder.createAnimations(desc, renamedIds, renames);
+    }
+
+    @Benchmark
+    public List<TextureSetLayout.Page> optimizeMeshes() {
+        return MeshOptimizer.optimize(pages, 8, 0.1f, new MeshOptimizer.Stats());
+    }
+
+    @Benchmark
+    public List<TextureSetLayout.Layout> createLayouts() {
+        return TextureSetLayout.createTextureSet(pages);
+    }
+
+    @Benchmark
+    public TextureSetResult createTextureSet() {
+        List<TextureSetLayout.Layout> layouts = TextureSetLayout.createTextureSet(pages);
+        MappedAnimIterator animIterator = new MappedAnimIterator(animations, frameIndex);
+        return TextureSetGenerator.createTextureSet(layouts, animIterator);
+    }
+
+    // What the editor did for each animation edit, before PreparedLayout
+    @Benchmark
+    public EditorAtlas editorCreateFullAtlas() throws IOException {
+        return EditorAtlas.create("/bench.tpatlas", descData, binaryData, "");
+    }
+
+    // What the editor does for each animation edit
+    @Benchmark
+    public EditorAtlas editorApplyAnimations() throws IOException {
+        return preparedLayout.apply("/bench.tpatlas", descData, "");
+    }
+
+    @Benchmark
+    public void getTriangles(Blackhole bh) {
+        for (TextureSetLayout.Page page : pages) {
+            Float pageHeight = page.size.height;
+            for (TextureSetLayout.SourceImage image : page.images) {
+                bh.consume(Atlas.getTriangles(image, pageHeight));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getPageTriangles(Blackhole bh) {
+        for (TextureSetLayout.Page page : pages) {
+            int[] offsets = new int[page.images.size() + 1];
+            bh.consume(Atlas.getPageTriangles(page, offsets));
+        }
+    }
+}
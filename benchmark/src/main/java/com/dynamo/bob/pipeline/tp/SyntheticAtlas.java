@@ -0,0 +1,137 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.dynamo.texturepacker.proto.Info;
+import com.dynamo.texturepacker.proto.Atlas.AtlasAnimation;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+import com.dynamo.gamesys.proto.Tile.Playback;
+
+// Generates .tpinfo/.tpatlas data of arbitrary size, laid out in a grid on square pages.
+// The output is deterministic for a given set of arguments.
+public class SyntheticAtlas {
+
+    static final int PAGE_SIZE = 4096;
+    static final int SPRITE_SIZE = 32;      // The untrimmed size of each sprite
+    static final int HULL_VERTICES = 8;     // The vertex count when using polygon meshes
+
+    static Info.Point point(float x, float y) {
+        return Info.Point.newBuilder().setX(x).setY(y).build();
+    }
+
+    static Info.Size size(float width, float height) {
+        return Info.Size.newBuilder().setWidth(width).setHeight(height).build();
+    }
+
+    static Info.Rect rect(float x, float y, float width, float height) {
+        return Info.Rect.newBuilder().setX(x).setY(y).setWidth(width).setHeight(height).build();
+    }
+
+    static String spriteName(int index) {
+        return String.format("sprites/sprite_%06d", index);
+    }
+
+    static Info.Sprite createSprite(Random random, int index, float x, float y, boolean polygons) {
+        boolean rotated = (index % 3) == 0;
+        int trim = random.nextInt(4);
+        float width = SPRITE_SIZE - trim * 2;
+        float height = SPRITE_SIZE - trim * 2;
+
+        Info.Sprite.Builder builder = Info.Sprite.newBuilder()
+            .setName(spriteName(index))
+            .setTrimmed(trim != 0)
+            .setRotated(rotated)
+            .setIsSolid(!polygons && trim == 0)
+            .setUntrimmedSize(size(SPRITE_SIZE, SPRITE_SIZE))
+            .setCornerOffset(point(trim, trim))
+            .setSourceRect(rect(trim, trim, width, height))
+            .setFrameRect(rect(x, y, width, height))
+            .setPivot(point(SPRITE_SIZE * 0.5f, SPRITE_SIZE * 0.5f));
+
+        if (polygons) {
+            // A convex hull around the center, triangulated as a fan
+            float cx = SPRITE_SIZE * 0.5f;
+            float cy = SPRITE_SIZE * 0.5f;
+            float radius = width * 0.5f;
+            for (int i = 0; i < HULL_VERTICES; ++i) {
+                double angle = (Math.PI * 2.0 * i) / HULL_VERTICES;
+                builder.addVertices(point(cx + (float)Math.cos(angle) * radius, cy + (float)Math.sin(angle) * radius));
+            }
+            for (int i = 1; i < HULL_VERTICES - 1; ++i) {
+                builder.addIndices(0);
+                builder.addIndices(i);
+                builder.addIndices(i + 1);
+            }
+        } else {
+            builder.addVertices(point(trim + width, trim));
+            builder.addVertices(point(trim, trim));
+            builder.addVertices(point(trim, trim + height));
+            builder.addVertices(point(trim + width, trim + height));
+            builder.addIndices(1).addIndices(2).addIndices(3).addIndices(0).addIndices(1).addIndices(3);
+        }
+        return builder.build();
+    }
+
+    public static Info.Atlas createInfo(int spriteCount, boolean polygons) {
+        Random random = new Random(spriteCount);
+        int spritesPerRow = PAGE_SIZE / SPRITE_SIZE;
+        int spritesPerPage = spritesPerRow * spritesPerRow;
+
+        Info.Atlas.Builder atlasBuilder = Info.Atlas.newBuilder()
+            .setVersion("1.0")
+            .setDescription("Synthetic benchmark atlas");
+
+        Info.Page.Builder pageBuilder = null;
+        for (int i = 0; i < spriteCount; ++i) {
+            int pageIndex = i / spritesPerPage;
+            int slot = i % spritesPerPage;
+            if (slot == 0) {
+                if (pageBuilder != null) {
+                    atlasBuilder.addPages(pageBuilder.build());
+                }
+                pageBuilder = Info.Page.newBuilder()
+                    .setName(String.format("synthetic-%d.png", pageIndex))
+                    .setSize(size(PAGE_SIZE, PAGE_SIZE));
+            }
+            float x = (slot % spritesPerRow) * SPRITE_SIZE;
+            float y = (slot / spritesPerRow) * SPRITE_SIZE;
+            pageBuilder.addSprites(createSprite(random, i, x, y, polygons));
+        }
+        if (pageBuilder != null) {
+            atlasBuilder.addPages(pageBuilder.build());
+        }
+        return atlasBuilder.build();
+    }
+
+    // One flipbook animation per 'framesPerAnimation' sprites
+    public static AtlasDesc.Builder createDesc(int spriteCount, int framesPerAnimation, String renamePatterns) {
+        AtlasDesc.Builder builder = AtlasDesc.newBuilder()
+            .setFile("/synthetic.tpinfo")
+            .setRenamePatterns(renamePatterns);
+
+        for (int start = 0; start + framesPerAnimation <= spriteCount; start += framesPerAnimation) {
+            AtlasAnimation.Builder animation = AtlasAnimation.newBuilder()
+                .setId(String.format("anim_%06d", start))
+                .setPlayback(Playback.PLAYBACK_LOOP_FORWARD)
+                .setFps(30);
+            for (int i = start; i < start + framesPerAnimation; ++i) {
+                animation.addImages(spriteName(i));
+            }
+            builder.addAnimations(animation.build());
+        }
+        return builder;
+    }
+
+    public static List<String> createFrameIds(int spriteCount) {
+        List<String> ids = new ArrayList<>(spriteCount);
+        for (int i = 0; i < spriteCount; ++i) {
+            ids.add(spriteName(i));
+        }
+        return ids;
+    }
+}
@@ -2,15 +2,11 @@
 
 import sys, os
 
-def test_file(path):
-    print path
-    os.system("./utils/test_plugin.sh %s" % path)
-
-
-for root, dirs, files in os.walk('.'):
-    for f in files:
-        if not f.endswith('.riv'):
-            continue
-
-        fullpath = os.path.join(root, f)
-        test_file(fullpath)
+# The files in examples/broken are expected to fail, and the .tpinfo in the exporter
+# and the .tpatlas in the editor templates aren't complete files
+def default_paths():
+    return sorted(os.path.join('examples', d) for d in os.listdir('examples')
+                  if d != 'broken' and os.path.isdir(os.path.join('examples', d)))
+
+# Builds the .tpatlas and .tpinfo files in the given files and directories (default: the examples), in a single jvm
+sys.exit(os.system("./utils/batch_build.sh %s" % " ".join(sys.argv[1:] or default_paths())) != 0)
@@ -50,8 +50,9 @@
            [com.jogamp.opengl GL2]
            [editor.gl.pass RenderPass]
            [editor.types AABB]
+           [java.awt.image BufferedImage]
            [java.io File]
-           [java.lang IllegalArgumentException]
+           [java.lang.invoke MethodHandles]
            [java.lang.reflect Method]
            [java.util List]
            [javax.vecmath Matrix4d Point3d Vector3d]))
@@ -73,10 +74,13 @@
 ;; Plugin functions (from Atlas.java)
 
 (def ^:private tpinfo-pb-cls (workspace/load-class! "com.dynamo.texturepacker.proto.Info$Atlas"))
-(def ^:private tpinfo-page-pb-cls (workspace/load-class! "com.dynamo.texturepacker.proto.Info$Page"))
 (def ^:private tpatlas-pb-cls (workspace/load-class! "com.dynamo.texturepacker.proto.Atlas$AtlasDesc"))
 (def ^:private tpatlas-animation-pb-cls (workspace/load-class! "com.dynamo.texturepacker.proto.Atlas$AtlasAnimation"))
 (def ^:private tp-plugin-cls (workspace/load-class! "com.dynamo.bob.pipeline.tp.Atlas"))
+(def ^:private tp-editor-atlas-cls (workspace/load-class! "com.dynamo.bob.pipeline.tp.EditorAtlas"))
+(def ^:private tp-prepared-layout-cls (workspace/load-class! "com.dynamo.bob.pipeline.tp.PreparedLayout"))
+(def ^:private tp-page-preview-cls (workspace/load-class! "com.dynamo.bob.pipeline.tp.PagePreview"))
+(def ^:private tp-page-crop-cls (workspace/load-class! "com.dynamo.bob.pipeline.tp.PageCrop"))
 
 (def ^:private byte-array-cls (Class/forName "[B"))
 
@@ -87,58 +91,127 @@
     (println "Return Type: " (.getReturnType m) "\n")))
 ;; TODO: Support printing public variables as well
 
-(defn- plugin-invoke-static [^Class cls name types args]
+;; The plugin classes are loaded at runtime, so we resolve the entry points once
+;; into method handles, instead of looking them up for every call.
+(defn- plugin-static-method
+  "Returns a function that calls the static method of the plugin class."
+  [^Class cls name types]
   (let [^Method method (try
                          (java/get-declared-method cls name types)
                          (catch NoSuchMethodException error
                            (debug-cls cls)
                            (throw error)))
-        obj-args (into-array Object args)]
-    (try
-      (.invoke method nil obj-args)
-      (catch IllegalArgumentException error
-        (prn "ERROR calling method:" (.toString method))
-        (prn "    with args of types:" (map type obj-args))
-        (throw error)))))
-
-(defn- plugin-create-layout-page
-  "Creates a TextureSetLayout$Page from an instance of tpinfo-page-pb-cls."
-  ^TextureSetLayout$Page [^long page-index tpinfo-page-pb]
-  (plugin-invoke-static tp-plugin-cls "createLayoutPage"
-                        [Integer/TYPE tpinfo-page-pb-cls]
-                        [(int page-index) tpinfo-page-pb]))
-
-(defn- plugin-create-full-atlas
-  "Creates an instance of tp-plugin-cls, using both tpinfo and tpatlas data.
-  Used when producing the build output for TPAtlasNode. All image references are
-  expected to use the original names."
-  [^String path ^bytes tpatlas-as-bytes ^bytes tpinfo-as-bytes]
-  (plugin-invoke-static tp-plugin-cls "createFullAtlas"
-                        [String byte-array-cls byte-array-cls]
-                        [path tpatlas-as-bytes tpinfo-as-bytes]))
-
-(defn- plugin-create-texture-set-result
-  "Returns a Pair<TextureSet, List<TextureSetGenerator$UVTransform>>. Use
-  (.left %) and (.right %) to obtain the components of the Pair."
-  [^String path atlas ^String texture-path]
-  (plugin-invoke-static tp-plugin-cls "createTextureSetResult"
-                        [String tp-plugin-cls String]
-                        [path atlas texture-path]))
-
-(defn- plugin-create-texture
-  "Creates the final texture (TextureGenerator$GenerateResult)."
-  ^TextureGenerator$GenerateResult [^String path is-paged buffered-images ^Graphics$TextureProfile texture-profile-pb compress]
-  (plugin-invoke-static tp-plugin-cls "createTexture"
-                        [String Boolean/TYPE List Graphics$TextureProfile Boolean/TYPE]
-                        [path is-paged buffered-images texture-profile-pb compress]))
-
-(defn- plugin-source-image-triangle-vertices
-  "Returns a float array (2-tuples) that is a triangle list:
-  [t0.x0, t0.y0, t0.x1, t0.y1, t0.x2, t0.y2, t1.x0, t1.y0, ...]."
-  ^floats [^TextureSetLayout$SourceImage source-image page-height]
-  (plugin-invoke-static tp-plugin-cls "getTriangles"
-                        [TextureSetLayout$SourceImage Float]
-                        [source-image page-height]))
+        handle (.unreflect (MethodHandles/publicLookup) method)]
+    (fn invoke-plugin-static-method [& args]
+      (let [^List arg-list (vec args)]
+        (try
+          (.invokeWithArguments handle arg-list)
+          (catch ClassCastException error
+            (prn "ERROR calling method:" (.toString method))
+            (prn "    with args of types:" (map type args))
+            (throw error)))))))
+
+(defn- plugin-method
+  "Returns a function that calls the method of a plugin object, with the
+  object as the first argument."
+  [^Class cls name types]
+  (let [^Method method (java/get-declared-method cls name types)
+        handle (.unreflect (MethodHandles/publicLookup) method)]
+    (fn invoke-plugin-method [obj & args]
+      (let [^List arg-list (into [obj] args)]
+        (.invokeWithArguments handle arg-list)))))
+
+(defn- plugin-field-getter
+  "Returns a function that gets the value of a public field of a plugin object."
+  [^Class cls ^String name]
+  (let [handle (.unreflectGetter (MethodHandles/publicLookup) (.getField cls name))]
+    (fn get-plugin-field [obj]
+      (let [^List arg-list [obj]]
+        (.invokeWithArguments handle arg-list)))))
+
+(def ^:private invoke-create-info-atlas
+  (plugin-static-method tp-editor-atlas-cls "createFromInfo" [String byte-array-cls]))
+
+(def ^:private invoke-create-info-atlas-from-file
+  (plugin-static-method tp-editor-atlas-cls "createFromInfoFile" [String File File]))
+
+(def ^:private invoke-prepare-layout
+  (plugin-static-method tp-prepared-layout-cls "create" [String byte-array-cls Integer/TYPE Float/TYPE]))
+
+(def ^:private invoke-apply-layout
+  (plugin-method tp-prepared-layout-cls "apply" [String byte-array-cls String]))
+
+(def ^:private invoke-get-crop-sizes
+  (plugin-method tp-prepared-layout-cls "getCropSizes" [Boolean/TYPE]))
+
+(def ^:private invoke-crop-page
+  (plugin-static-method tp-page-crop-cls "crop" [BufferedImage Integer/TYPE Integer/TYPE]))
+
+(def ^:private invoke-create-texture-page
+  (plugin-static-method tp-plugin-cls "createTexturePage" [BufferedImage Graphics$TextureProfile Boolean/TYPE]))
+
+(def ^:private invoke-combine-texture-pages
+  (plugin-static-method tp-plugin-cls "combineTexturePages" [Boolean/TYPE List]))
+
+(def ^:private invoke-load-page-preview
+  (plugin-static-method tp-page-preview-cls "load" [File String Integer/TYPE]))
+
+(def ^:private invoke-create-page-preview
+  (plugin-static-method tp-page-preview-cls "create" [File String BufferedImage Integer/TYPE]))
+
+(def ^:private editor-atlas-info (plugin-field-getter tp-editor-atlas-cls "info"))
+(def ^:private editor-atlas-pages (plugin-field-getter tp-editor-atlas-cls "pages"))
+(def ^:private editor-atlas-texture-set (plugin-field-getter tp-editor-atlas-cls "textureSet"))
+(def ^:private editor-atlas-uv-transforms (plugin-field-getter tp-editor-atlas-cls "uvTransforms"))
+(def ^:private editor-atlas-triangles (plugin-field-getter tp-editor-atlas-cls "triangles"))
+(def ^:private editor-atlas-triangle-offsets (plugin-field-getter tp-editor-atlas-cls "triangleOffsets"))
+
+(defn- plugin-create-info-atlas
+  "Creates an EditorAtlas from the tpinfo data. It holds the layout pages and
+  the triangles of all the images, but no texture set."
+  [^String path ^bytes tpinfo-as-bytes]
+  (invoke-create-info-atlas path tpinfo-as-bytes))
+
+(defn- plugin-create-info-atlas-from-file
+  "Same as plugin-create-info-atlas, but reads the tpinfo file, and also holds
+  the parsed tpinfo. The parsed tpinfo and the layout pages are cached in a
+  binary file in the cache directory, keyed by the size and modification time
+  of the tpinfo file, so that the next project load neither parses the text
+  nor converts the pages again."
+  [^String path ^File tpinfo-file ^File cache-dir]
+  (invoke-create-info-atlas-from-file path tpinfo-file cache-dir))
+
+(defn- plugin-prepare-layout
+  "Creates a PreparedLayout from the tpinfo data and the mesh settings of the
+  tpatlas. It holds the geometry of the texture set, and doesn't change when
+  the animations are edited."
+  [^String path ^bytes tpinfo-as-bytes max-sprite-vertices max-sprite-extra-area]
+  (invoke-prepare-layout path tpinfo-as-bytes (int max-sprite-vertices) (float max-sprite-extra-area)))
+
+(defn- plugin-apply-layout
+  "Creates an EditorAtlas from a PreparedLayout and the tpatlas data. The texture
+  set is generated from the prepared layouts. Used when producing the
+  build output for TPAtlasNode. All image references are expected to use the
+  original names."
+  [prepared-layout ^String path ^bytes tpatlas-as-bytes]
+  (invoke-apply-layout prepared-layout path tpatlas-as-bytes ""))
+
+(defn- plugin-get-crop-sizes
+  "Returns a vector with the cropped [width height] of each page, the same as
+  bob uses for the crop-pages setting, or nil if the pages can't be cropped."
+  [prepared-layout is-paged-atlas]
+  (some->> (invoke-get-crop-sizes prepared-layout (boolean is-paged-atlas))
+           (mapv vec)))
+
+(defn- plugin-create-texture-page
+  "Creates the texture (TextureGenerator$GenerateResult) of a single page."
+  ^TextureGenerator$GenerateResult [^BufferedImage buffered-image ^Graphics$TextureProfile texture-profile-pb compress]
+  (invoke-create-texture-page buffered-image texture-profile-pb (boolean compress)))
+
+(defn- plugin-combine-texture-pages
+  "Creates the final texture (TextureGenerator$GenerateResult) from the page textures."
+  ^TextureGenerator$GenerateResult [is-paged page-results]
+  (invoke-combine-texture-pages (boolean is-paged) page-results))
 
 (def ^:private TFinalName (s/named s/Str "final-name"))
 (def ^:private TNodeID (s/named s/Int "node-id"))
@@ -255,10 +328,58 @@
 (defn- tpinfo->size-vec2 [tpinfo]
   (some-> tpinfo :pages first :size size->vec2))
 
-(defn- make-gpu-texture [request-id page-image-content-generators texture-profile]
-  (-> (texture-util/construct-gpu-texture request-id page-image-content-generators texture-profile)
-      (texture/set-params {:min-filter gl/nearest
-                           :mag-filter gl/nearest})))
+;; The max width and height of the page images shown in the .tpinfo and .tpatlas
+;; scene views. Larger pages are downscaled, so that huge atlases don't hold
+;; hundreds of MB of decoded pixels in the editor. The gpu-texture of the atlas
+;; node protocol, used by the scenes that reference the atlas (e.g. sprites),
+;; and the build always use the full size pages.
+(def ^:private preview-page-max-size 2048)
+
+(defn- generate-page-preview [{:keys [content-generator cache-dir]}]
+  (let [key (:sha1 content-generator)]
+    (or (invoke-load-page-preview cache-dir key (int preview-page-max-size))
+        (let [buffered-image (texture-util/call-generator content-generator)]
+          (g/precluding-errors buffered-image
+            (invoke-create-page-preview cache-dir key buffered-image (int preview-page-max-size)))))))
+
+(defn- make-page-preview-content-generator
+  "Returns a content generator for the downscaled page image. The preview is
+  cached in the cache directory, keyed by the sha1 of the page image, so the
+  full size image is only decoded the first time."
+  [content-generator ^File cache-dir]
+  (if (texture-util/content-generator? content-generator)
+    {:f generate-page-preview
+     :args {:content-generator content-generator
+            :cache-dir cache-dir}
+     :sha1 (str (:sha1 content-generator) "-preview-" preview-page-max-size)}
+    content-generator))
+
+(defn- generate-cropped-page [{:keys [content-generator width height]}]
+  (let [buffered-image (texture-util/call-generator content-generator)]
+    (g/precluding-errors buffered-image
+      (invoke-crop-page buffered-image (int width) (int height)))))
+
+(defn- make-cropped-page-content-generator
+  "Returns a content generator for the top left part of the page image, i.e.
+  the page cropped to the area used by the sprites."
+  [content-generator [width height]]
+  (if (texture-util/content-generator? content-generator)
+    {:f generate-cropped-page
+     :args {:content-generator content-generator
+            :width width
+            :height height}
+     :sha1 (str (:sha1 content-generator) "-crop-" width "x" height)}
+    content-generator))
+
+(defn- make-gpu-texture [request-id resource page-image-content-generators texture-profile preview]
+  (let [cache-dir (workspace/build-path (resource/workspace resource))
+        content-generators (if preview
+                             (mapv #(make-page-preview-content-generator % cache-dir)
+                                   page-image-content-generators)
+                             page-image-content-generators)]
+    (-> (texture-util/construct-gpu-texture request-id content-generators texture-profile)
+        (texture/set-params {:min-filter gl/nearest
+                             :mag-filter gl/nearest}))))
 
 (defn- render-image-geometry [^GL2 gl world-positions color]
   (let [[^double cr ^double cg ^double cb ^double ca] color]
@@ -311,27 +432,21 @@
 (defn- point->vec3 [^Point3d point]
   (vector-of :double (.x point) (.y point) (.z point)))
 
-(defn- make-image-scene [image-node-id ^TextureSetLayout$SourceImage source-image ^TextureSetLayout$Page layout-page page-offset-transforms]
-  (let [page-size (.size layout-page)
-        page-height (.height page-size)
-        page-index (.index layout-page)
-        ^Matrix4d page-offset-transform (page-offset-transforms page-index)
-        interleaved-xys (plugin-source-image-triangle-vertices source-image page-height)
-
-        ;; We calculate the AABB from the vertex positions because the rect of
+;; The triangles of the image are in the range [start, end) of page-xys.
+(defn- make-image-scene [image-node-id ^floats page-xys start end ^Matrix4d page-offset-transform]
+  (let [;; We calculate the AABB from the vertex positions because the rect of
         ;; the SourceImage includes the empty space that was around the image
         ;; before it was trimmed away and composed into an atlas. For our
         ;; purposes, we want the AABB to encompass the vertices of the trimmed
         ;; hull, so that it can be framed and box-selected in the scene view.
         [world-aabb world-positions]
-        (let [length (alength interleaved-xys)
-              point (Point3d.)]
-          (loop [index 0
+        (let [point (Point3d.)]
+          (loop [index (long start)
                  world-aabb geom/null-aabb
                  world-positions (transient [])]
-            (if (< index length)
-              (let [x (aget interleaved-xys index)
-                    y (aget interleaved-xys (inc index))]
+            (if (< index (long end))
+              (let [x (aget page-xys index)
+                    y (aget page-xys (inc index))]
                 (.set point x y 0.0)
                 (.transform page-offset-transform point)
                 (recur (+ index 2)
@@ -362,6 +477,7 @@
 
   (property tpinfo g/Any (dynamic visible (g/constantly false))) ; Loaded tpinfo. Use save-value instead when you need up-to-date resource paths.
   (property layout-pages LayoutPageVec (dynamic visible (g/constantly false)))
+  (property page-triangles g/Any (dynamic visible (g/constantly false))) ; Pair of the triangles and the triangle offsets of each page, from the EditorAtlas.
 
   (property size types/Vec2
             (value (g/fnk [tpinfo] (tpinfo->size-vec2 tpinfo)))
@@ -423,8 +539,9 @@
                              (.setTranslation (Vector3d. page-offset-x 0.0 0.0)))))))))
 
   (output image-scenes-by-original-name OriginalName->Scene :cached
-          (g/fnk [layout-pages page-infos page-offset-transforms]
-            (let [original-name->image-node-id
+          (g/fnk [layout-pages page-infos page-offset-transforms page-triangles]
+            (let [[page-xys-by-index out-offsets-by-index] page-triangles
+                  original-name->image-node-id
                   (into {}
                         (comp (mapcat :image-node-id+original-names)
                               (map (fn [[image-node-id original-name]]
@@ -434,12 +551,20 @@
               (into {}
                     (mapcat
                       (fn [^TextureSetLayout$Page layout-page]
-                        (map (fn [^TextureSetLayout$SourceImage source-image]
-                               (let [original-name (.name source-image)
-                                     image-node-id (original-name->image-node-id original-name)
-                                     scene (make-image-scene image-node-id source-image layout-page page-offset-transforms)]
-                                 (pair original-name scene)))
-                             (.images layout-page))))
+                        ;; The triangles of all images in the page are in one array.
+                        (let [page-index (.index layout-page)
+                              source-images (.images layout-page)
+                              ^floats page-xys (aget ^"[[F" page-xys-by-index page-index)
+                              ^ints out-offsets (aget ^"[[I" out-offsets-by-index page-index)
+                              page-offset-transform (page-offset-transforms page-index)]
+                          (map-indexed (fn [^long image-index ^TextureSetLayout$SourceImage source-image]
+                                         (let [original-name (.name source-image)
+                                               image-node-id (original-name->image-node-id original-name)
+                                               start (aget out-offsets image-index)
+                                               end (aget out-offsets (inc image-index))
+                                               scene (make-image-scene image-node-id page-xys start end page-offset-transform)]
+                                           (pair original-name scene)))
+                                       source-images))))
                     layout-pages))))
 
   (output parent-dir-file File :cached
@@ -450,9 +575,9 @@
                 (io/file)
                 (.getParentFile))))
 
-  (output gpu-texture g/Any :cached
-          (g/fnk [_node-id page-image-content-generators]
-            (make-gpu-texture _node-id page-image-content-generators nil)))
+  (output gpu-texture g/Any :cached ; Only used by the scene view, so the pages are downscaled.
+          (g/fnk [_node-id resource page-image-content-generators]
+            (make-gpu-texture _node-id resource page-image-content-generators nil true)))
 
   (output scene Scene :cached produce-tpinfo-scene)
 
@@ -473,10 +598,17 @@
 
   (output save-value g/Any :cached produce-tpinfo-save-value))
 
-(defn- rename-id [id rename-patterns]
-  (if rename-patterns
-    (try (AtlasUtil/replaceStrings rename-patterns id) (catch Exception _ id))
-    id))
+(defn- make-rename-fn
+  "Returns a function that renames an id using the rename patterns. The patterns
+  are only parsed once, so use the same function for all the ids. Invalid
+  patterns leave the ids unchanged."
+  [rename-patterns]
+  (if-let [patterns (when (not-empty rename-patterns)
+                      (try (AtlasUtil/parsePatterns rename-patterns) (catch Exception _ nil)))]
+    (let [^"[[Ljava.lang.String;" patterns patterns]
+      (fn rename-id [id]
+        (AtlasUtil/replaceStrings patterns ^String id)))
+    identity))
 
 (defn- original-name-missing-in-tpinfo? [original-name tpinfo-image-infos-by-original-name]
   (when-not (contains? tpinfo-image-infos-by-original-name original-name)
@@ -645,7 +777,19 @@
       (for [source-image (.images layout-page)]
         (add-image-node-to-page-node page-node source-image)))))
 
-;; Loads the .tpinfo file (api is default ddf loader)
+;; Reads the .tpinfo file. Files on disk are read by the plugin, which takes the
+;; parsed tpinfo from the layout cache if the file is unchanged, instead of parsing
+;; the text. The EditorAtlas is passed on to load-tpinfo-file in the metadata.
+(defn- read-tpinfo-file [resource]
+  (if (resource/file-resource? resource)
+    (let [editor-atlas (plugin-create-info-atlas-from-file (resource/proj-path resource)
+                                                           (io/file resource)
+                                                           (workspace/build-path (resource/workspace resource)))]
+      (with-meta (protobuf/pb->map-with-defaults (editor-atlas-info editor-atlas))
+                 {::editor-atlas editor-atlas}))
+    (protobuf/read-map-with-defaults tpinfo-pb-cls resource)))
+
+;; Loads the .tpinfo file (the source value comes from read-tpinfo-file)
 (defn- load-tpinfo-file [_project self resource tpinfo]
   (let [pages (:pages tpinfo)
 
@@ -654,16 +798,19 @@
                 (workspace/resolve-resource resource (:name page)))
               pages)
 
-        layout-pages
-        (into []
-              (map-indexed (fn [index page]
-                             (let [tpinfo-page-pb (protobuf/map->pb tpinfo-page-pb-cls page)]
-                               (plugin-create-layout-page index tpinfo-page-pb))))
-              pages)]
+        ;; Create all layout pages and their triangles with a single call.
+        ;; Files on disk already did this when they were read.
+        editor-atlas (or (::editor-atlas (meta tpinfo))
+                         (plugin-create-info-atlas (resource/proj-path resource)
+                                                   (protobuf/map->bytes tpinfo-pb-cls tpinfo)))
+        layout-pages (vec (editor-atlas-pages editor-atlas))
+        page-triangles (pair (editor-atlas-triangles editor-atlas)
+                             (editor-atlas-triangle-offsets editor-atlas))]
 
     (concat
       (g/set-property self :tpinfo tpinfo)
       (g/set-property self :layout-pages layout-pages)
+      (g/set-property self :page-triangles page-triangles)
       (mapcat
         (fn [page-image-resource layout-page]
           (add-page-node-to-tpinfo-node self page-image-resource layout-page))
@@ -696,7 +843,7 @@
     (g/connect atlas-node :tpinfo-image-scenes-by-original-name animation-node :tpinfo-image-scenes-by-original-name)
     (g/connect atlas-node :id-counts animation-node :id-counts)
     (g/connect atlas-node :rename-patterns animation-node :rename-patterns)
-    (g/connect atlas-node :gpu-texture animation-node :gpu-texture)
+    (g/connect atlas-node :preview-gpu-texture animation-node :gpu-texture)
     (g/connect atlas-node :anim-data animation-node :anim-data)
     (g/connect animation-node :_node-id atlas-node :nodes)
     (g/connect animation-node :node-outline atlas-node :child-outlines)
@@ -809,15 +956,16 @@
 
   (output image-outlines g/Any :cached
           (g/fnk [image-node-id+original-names rename-patterns id-counts]
-            (mapv (fn [[node-id original-name]]
-                    (let [final-name (rename-id original-name rename-patterns)
-                          has-duplicate-name (> (long (id-counts final-name)) 1)]
-                      {:node-id node-id
-                       :node-outline-key original-name
-                       :label final-name
-                       :icon image-icon
-                       :outline-error? has-duplicate-name}))
-                  image-node-id+original-names)))
+            (let [rename-id (make-rename-fn rename-patterns)]
+              (mapv (fn [[node-id original-name]]
+                      (let [final-name (rename-id original-name)
+                            has-duplicate-name (> (long (id-counts final-name)) 1)]
+                        {:node-id node-id
+                         :node-outline-key original-name
+                         :label final-name
+                         :icon image-icon
+                         :outline-error? has-duplicate-name}))
+                    image-node-id+original-names))))
 
   (output node-outline outline/OutlineData :cached
           (g/fnk [_node-id id own-build-errors image-outlines]
@@ -888,7 +1036,10 @@
                   (gu/set-properties-from-pb-map self tpatlas-pb-cls tpatlas
                     file (resolve-resource :file)
                     rename-patterns :rename-patterns
-                    is-paged-atlas :is-paged-atlas)
+                    is-paged-atlas :is-paged-atlas
+                    max-sprite-vertices :max-sprite-vertices
+                    max-sprite-extra-area :max-sprite-extra-area
+                    crop-pages :crop-pages)
                   (mapv (fn [animation]
                           (->> animation
                                (update-int->bool [:flip-horizontal :flip-vertical])
@@ -897,11 +1048,14 @@
     tx-data))
 
 ;; saving the .tpatlas file
-(g/defnk produce-tpatlas-save-value [file animation-save-values rename-patterns is-paged-atlas]
+(g/defnk produce-tpatlas-save-value [file animation-save-values rename-patterns is-paged-atlas max-sprite-vertices max-sprite-extra-area crop-pages]
   (protobuf/make-map-without-defaults tpatlas-pb-cls
     :file (resource/resource->proj-path file)
     :rename-patterns rename-patterns
     :is-paged-atlas is-paged-atlas
+    :max-sprite-vertices max-sprite-vertices
+    :max-sprite-extra-area max-sprite-extra-area
+    :crop-pages crop-pages
     :animations animation-save-values))
 
 (defn- validate-rename-patterns [node-id rename-patterns]
@@ -910,6 +1064,12 @@
     (catch Exception error
       (validation/prop-error :fatal node-id :rename-patterns identity (.getMessage error)))))
 
+(defn- validate-max-sprite-vertices [node-id max-sprite-vertices]
+  (validation/prop-error :fatal node-id :max-sprite-vertices validation/prop-negative? max-sprite-vertices "Max Sprite Vertices"))
+
+(defn- validate-max-sprite-extra-area [node-id max-sprite-extra-area]
+  (validation/prop-error :fatal node-id :max-sprite-extra-area validation/prop-negative? max-sprite-extra-area "Max Sprite Extra Area"))
+
 (defn- validate-unique-ids [node-id id-counts]
   (validation/prop-error
     :fatal node-id :rename-patterns
@@ -928,14 +1088,27 @@
     false
     (> (count (:pages tpinfo)) 1)))
 
+(defn- create-texture-pages
+  "Decodes and generates one page at a time, so that only one decoded page
+  image is held in memory. Returns the vector of page textures, or the error of
+  the first page image that failed to load."
+  [page-image-content-generators texture-profile-pb compress]
+  (reduce (fn [page-results content-generator]
+            (let [buffered-image (texture-util/call-generator content-generator)
+                  result (g/precluding-errors buffered-image
+                           (conj page-results (plugin-create-texture-page buffered-image texture-profile-pb compress)))]
+              (if (vector? result)
+                result
+                (reduced result))))
+          []
+          page-image-content-generators))
+
 (defn- build-texture [resource _dep-resources user-data]
-  (let [{:keys [page-image-content-generators]} user-data
-        buffered-images (mapv texture-util/call-generator page-image-content-generators)]
-    (g/precluding-errors buffered-images
-      (let [{:keys [paged-atlas texture-profile compress]} user-data
-            path (resource/path resource)
-            texture-profile-pb (some->> texture-profile (protobuf/map->pb Graphics$TextureProfile))
-            texture-generator-result (plugin-create-texture path paged-atlas buffered-images texture-profile-pb compress)]
+  (let [{:keys [page-image-content-generators paged-atlas texture-profile compress]} user-data
+        texture-profile-pb (some->> texture-profile (protobuf/map->pb Graphics$TextureProfile))
+        page-results (create-texture-pages page-image-content-generators texture-profile-pb compress)]
+    (g/precluding-errors page-results
+      (let [texture-generator-result (plugin-combine-texture-pages paged-atlas page-results)]
         {:resource resource
          :write-content-fn tex-gen/write-texturec-content-fn
          :user-data {:texture-generator-result texture-generator-result}}))))
@@ -960,13 +1133,12 @@
        :build-fn build-texture
        :user-data user-data})))
 
-(g/defnk produce-tpatlas-build-targets [_node-id resource build-errors tpinfo is-paged-atlas texture-set tpinfo-page-image-content-generators texture-profile build-settings]
+(g/defnk produce-tpatlas-build-targets [_node-id resource build-errors tpinfo is-paged-atlas texture-set page-image-content-generators texture-profile build-settings]
   (g/precluding-errors build-errors
     (let [project (project/get-project _node-id)
           workspace (project/workspace project)
           use-paged-texture (or (tpinfo-has-multiple-pages? tpinfo) is-paged-atlas)
           compress (:compress-textures? build-settings false)
-          page-image-content-generators (vec tpinfo-page-image-content-generators)
           texture-build-target (make-texture-build-target workspace _node-id use-paged-texture page-image-content-generators texture-profile compress)
           texture-resource (-> texture-build-target :resource :resource)
           dep-build-targets [texture-build-target]]
@@ -980,9 +1152,9 @@
     {}
     (texture-set/make-anim-data texture-set uv-transforms)))
 
-(defn- modify-tpinfo-image-node-outline [tpinfo-image-node-outline rename-patterns id-counts]
+(defn- modify-tpinfo-image-node-outline [tpinfo-image-node-outline rename-id id-counts]
   (let [original-name (:node-outline-key tpinfo-image-node-outline)
-        final-name (rename-id original-name rename-patterns)
+        final-name (rename-id original-name)
         has-duplicate-name (> (long (id-counts final-name)) 1)]
     (assoc tpinfo-image-node-outline
       :label final-name
@@ -991,20 +1163,18 @@
 ;; We want to reuse the node outlines from the tpinfo file, but we also
 ;; need them to display any renamed image names
 (defn- make-tpinfo-node-outline-copies [tpinfo-node-outline rename-patterns id-counts]
-  (into []
-        (comp (mapcat (fn [page-node-outline]
-                        (:children page-node-outline)))
-              (map (fn [image-node-outline]
-                     (modify-tpinfo-image-node-outline image-node-outline rename-patterns id-counts))))
-        (:children tpinfo-node-outline)))
-
-(set! *warn-on-reflection* false)
-(defn- make-uv-transforms+texture-set [^String path atlas]
-  (let [result (plugin-create-texture-set-result path atlas "")
-        texture-set (protobuf/pb->map-without-defaults (.left result)) ; Reflection from (.left) call on unknown type.
-        uv-transforms (vec (.right result))] ; Reflection from (.right) call on unknown type.
+  (let [rename-id (make-rename-fn rename-patterns)]
+    (into []
+          (comp (mapcat (fn [page-node-outline]
+                          (:children page-node-outline)))
+                (map (fn [image-node-outline]
+                       (modify-tpinfo-image-node-outline image-node-outline rename-id id-counts))))
+          (:children tpinfo-node-outline))))
+
+(defn- make-uv-transforms+texture-set [editor-atlas]
+  (let [texture-set (protobuf/pb->map-without-defaults (editor-atlas-texture-set editor-atlas))
+        uv-transforms (vec (editor-atlas-uv-transforms editor-atlas))]
     (pair uv-transforms texture-set)))
-(set! *warn-on-reflection* true)
 
 (g/defnode TPAtlasNode
   (inherits resource-node/ResourceNode)
@@ -1038,6 +1208,21 @@
   (property is-paged-atlas g/Bool (default (protobuf/default tpatlas-pb-cls :is-paged-atlas))
             (dynamic visible (g/fnk [tpinfo] (not (tpinfo-has-multiple-pages? tpinfo)))))
 
+  ;; Simplifies the sprite meshes to at most this many vertices. 0 keeps the meshes as exported.
+  (property max-sprite-vertices g/Int (default (protobuf/default tpatlas-pb-cls :max-sprite-vertices))
+            (dynamic error (g/fnk [_node-id max-sprite-vertices]
+                             (validate-max-sprite-vertices _node-id max-sprite-vertices))))
+
+  ;; The max area a simplified sprite mesh may grow, as a fraction of its original area.
+  (property max-sprite-extra-area g/Num (default (protobuf/default tpatlas-pb-cls :max-sprite-extra-area))
+            (dynamic visible (g/fnk [max-sprite-vertices] (pos? (long max-sprite-vertices))))
+            (dynamic error (g/fnk [_node-id max-sprite-extra-area]
+                             (validate-max-sprite-extra-area _node-id max-sprite-extra-area))))
+
+  ;; Crops the pages to the area used by the sprites. The texture set uses the
+  ;; cropped page sizes, so the atlas textures use the cropped page images.
+  (property crop-pages g/Bool (default (protobuf/default tpatlas-pb-cls :crop-pages)))
+
   (input build-settings g/Any)
   (input texture-profiles g/Any)
 
@@ -1069,17 +1254,38 @@
               (count (:pages tpinfo))
               texture/non-paged-page-count)))
 
+  ;; The geometry only changes with the tpinfo and the mesh settings, so it's
+  ;; prepared once, and editing the animations only reruns the texture set generator.
+  (output prepared-layout g/Any :cached
+          (g/fnk [resource tpinfo max-sprite-vertices max-sprite-extra-area]
+            (when (pos? (count (:pages tpinfo)))
+              (plugin-prepare-layout (resource/path resource)
+                                     (protobuf/map->bytes tpinfo-pb-cls tpinfo)
+                                     max-sprite-vertices
+                                     max-sprite-extra-area))))
+
   (output uv-transforms+texture-set g/Any :cached
-          (g/fnk [_node-id resource save-value tpinfo tpinfo-file-resource]
+          (g/fnk [_node-id resource save-value tpinfo tpinfo-file-resource prepared-layout]
             (or (validate-tpinfo-file _node-id tpinfo-file-resource)
                 (validate-tpinfo-for-tpatlas-use _node-id tpinfo)
                 (when-some [rename-patterns (:rename-patterns save-value)] ; Stripped from save-value if empty.
                   (validate-rename-patterns _node-id rename-patterns))
                 (let [path (resource/path resource)
                       tpatlas-bytes (protobuf/map->bytes tpatlas-pb-cls save-value)
-                      tpinfo-bytes (protobuf/map->bytes tpinfo-pb-cls tpinfo)
-                      atlas (plugin-create-full-atlas path tpatlas-bytes tpinfo-bytes)]
-                  (make-uv-transforms+texture-set path atlas)))))
+                      editor-atlas (plugin-apply-layout prepared-layout path tpatlas-bytes)]
+                  (make-uv-transforms+texture-set editor-atlas)))))
+
+  (output crop-sizes g/Any :cached
+          (g/fnk [prepared-layout crop-pages is-paged-atlas]
+            (when (and crop-pages prepared-layout)
+              (plugin-get-crop-sizes prepared-layout is-paged-atlas))))
+
+  ;; The page images of the atlas textures (see crop-pages).
+  (output page-image-content-generators g/Any :cached
+          (g/fnk [tpinfo-page-image-content-generators crop-sizes]
+            (if crop-sizes
+              (mapv make-cropped-page-content-generator tpinfo-page-image-content-generators crop-sizes)
+              (vec tpinfo-page-image-content-generators))))
 
   (output uv-transforms g/Any (g/fnk [uv-transforms+texture-set] (first uv-transforms+texture-set)))
   (output texture-set g/Any (g/fnk [uv-transforms+texture-set] (second uv-transforms+texture-set)))
@@ -1090,14 +1296,19 @@
             (tex-gen/match-texture-profile texture-profiles (resource/proj-path resource))))
 
   (output gpu-texture g/Any :cached ; Atlas node protocol.
-          (g/fnk [_node-id tpinfo-page-image-content-generators texture-profile]
-            (make-gpu-texture _node-id tpinfo-page-image-content-generators texture-profile)))
+          (g/fnk [_node-id resource page-image-content-generators texture-profile]
+            (make-gpu-texture _node-id resource page-image-content-generators texture-profile false)))
+
+  ;; The downscaled texture for the animations in the .tpatlas scene view.
+  (output preview-gpu-texture g/Any :cached
+          (g/fnk [_node-id resource page-image-content-generators texture-profile]
+            (make-gpu-texture _node-id resource page-image-content-generators texture-profile true)))
 
   (output anim-ids g/Any :cached ; Atlas node protocol.
           (g/fnk [animation-ids rename-patterns tpinfo-image-infos-by-original-name]
             (->> tpinfo-image-infos-by-original-name
                  (keys)
-                 (map #(rename-id % rename-patterns))
+                 (map (make-rename-fn rename-patterns))
                  (concat animation-ids)
                  (filter not-empty)
                  (sort util/natural-order)
@@ -1122,10 +1333,12 @@
   (output scene g/Any :cached produce-tpatlas-scene)
 
   (output own-build-errors g/Any
-          (g/fnk [_node-id file rename-patterns id-counts]
+          (g/fnk [_node-id file rename-patterns max-sprite-vertices max-sprite-extra-area id-counts]
             (g/package-errors _node-id
                               (validate-tpinfo-file _node-id file)
                               (validate-rename-patterns _node-id rename-patterns)
+                              (validate-max-sprite-vertices _node-id max-sprite-vertices)
+                              (validate-max-sprite-extra-area _node-id max-sprite-extra-area)
                               (validate-unique-ids _node-id id-counts))))
 
   (output build-errors g/Any
@@ -1291,14 +1504,17 @@
 
 (defn- register-resource-types [workspace]
   (concat
-    (resource-node/register-ddf-resource-type workspace
+    ;; Registered like a ddf resource type, but with our own read-fn (see read-tpinfo-file)
+    (workspace/register-resource-type workspace
+      :textual? true
       :ext tpinfo-file-ext
       :label tpinfo-resource-label
       :node-type TPInfoNode
+      :read-fn read-tpinfo-file
+      :write-fn (partial protobuf/map->str tpinfo-pb-cls)
       :load-fn load-tpinfo-file
       :icon tpinfo-icon
       :category (localization/message "resource.category.resources")
-      :ddf-type tpinfo-pb-cls
       :view-types [:scene :text]
       :view-opts {:scene {:grid true}})
     (resource-node/register-ddf-resource-type workspace
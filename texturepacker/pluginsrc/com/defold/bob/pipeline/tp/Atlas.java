@@ -26,7 +26,6 @@ import com.dynamo.bob.pipeline.tp.AtlasBuilder.MappedAnimIterator;
 
 import com.dynamo.bob.util.TextureUtil;
 import com.dynamo.bob.pipeline.TextureGeneratorException;
-import com.dynamo.bob.pipeline.AtlasUtil;
 import com.dynamo.bob.pipeline.TextureGenerator;
 import com.dynamo.bob.CompileExceptionError;
 
@@ -37,21 +36,19 @@ import com.dynamo.gamesys.proto.TextureSetProto.TextureSet;
 public class Atlas {
 
     public List<String>                     frameIds;   // The unique frame names
+    public FrameIndex                       frameIndex; // Lookup from frame name to index
     public List<TextureSetLayout.Page>      pages;
     public List<TextureSetLayout.Layout>    layouts;
     public List<AtlasBuilder.MappedAnimDesc> animations;
+    RenamePatterns                          renames;    // The rename patterns of the .tpatlas, or null if built from a .tpinfo only
 
     public List<String>                     pageImageNames; // List of base filenames: basic-0.png, ...
 
     static public List<String> renameFrameIds(List<String> frameIds, String renamePatterns) throws CompileExceptionError {
-        List<String> renamedIds = new ArrayList<>();
-        for (String s : frameIds) {
-            renamedIds.add(AtlasUtil.replaceStrings(renamePatterns, s));
-        }
-        return renamedIds;
+        return new RenamePatterns(renamePatterns).rename(frameIds);
     }
 
-    // TODO: Create helper struct for the editor to hold all the info
+    // The editor uses EditorAtlas, which holds all the info it needs
     static public Atlas createAtlasInternal(String path, AtlasDesc.Builder tpatlasBuilder, Info.Atlas tpinfo) throws IOException {
         Atlas atlas = new Atlas();
 
@@ -61,27 +58,28 @@ public class Atlas {
             String renamePatterns = tpatlasBuilder.getRenamePatterns();
 
             // The tpinfo is the original one, with no image renaming,
-            // so we do that right here, as we're building the final result
+            // so we do that right here, as we're building the final result.
+            // The animations use the same renamed ids as the frames.
             try {
-                atlas.frameIds = renameFrameIds(atlas.frameIds, renamePatterns);
+                atlas.renames = new RenamePatterns(renamePatterns);
             } catch (CompileExceptionError e) {
                 throw new RuntimeException(String.format("Couldn't transform frame ids using rename patterns '%s'", renamePatterns), e);
             }
 
-            try {
-                AtlasBuilder.renameAnimations(tpatlasBuilder, renamePatterns);
-            } catch (CompileExceptionError e) {
-                throw new RuntimeException(String.format("Couldn't transform animation frame ids using rename patterns '%s'", renamePatterns), e);
-            }
-
-            atlas.animations = AtlasBuilder.createAnimations(tpatlasBuilder, atlas.frameIds);
+            atlas.frameIds = atlas.renames.rename(atlas.frameIds);
+            atlas.animations = AtlasBuilder.createAnimations(tpatlasBuilder, atlas.frameIds, atlas.renames);
         }
         else {
             // tpatlasBuilder is null when we're building from a .tpinfo file only
             atlas.animations = AtlasBuilder.createSingleFrameAnimations(atlas.frameIds);
         }
 
+        atlas.frameIndex = new FrameIndex(atlas.frameIds);
         atlas.pages = AtlasBuilder.createPages(tpinfo);
+        if (tpatlasBuilder != null) {
+            // Same as the texture set from bob
+            atlas.pages = AtlasBuilder.optimizeMeshes(tpatlasBuilder, atlas.pages, new MeshOptimizer.Stats());
+        }
         atlas.layouts = TextureSetLayout.createTextureSet(atlas.pages);
 
         atlas.pageImageNames = new ArrayList<>();
@@ -120,7 +118,8 @@ public class Atlas {
 
     // Used from editor
     static public Pair<TextureSet, List<TextureSetGenerator.UVTransform>> createTextureSetResult(String path, Atlas atlas, String texture) {
-        MappedAnimIterator animIterator = new MappedAnimIterator(atlas.animations, atlas.frameIds);
+        FrameIndex frameIndex = atlas.frameIndex != null ? atlas.frameIndex : new FrameIndex(atlas.frameIds);
+        MappedAnimIterator animIterator = new MappedAnimIterator(atlas.animations, frameIndex);
         TextureSetResult result = TextureSetGenerator.createTextureSet(atlas.layouts, animIterator);
         int pageCount = atlas.pages.size();
         return new Pair(result.builder.setPageCount(pageCount)
@@ -135,9 +134,29 @@ public class Atlas {
         return TextureUtil.createMultiPageTexture(textureImages, textureImageType, textureProfile, compress);
     }
 
+    // Used from editor
+    // Generates the texture of a single page. Used with combineTexturePages(), so that only one decoded page image is needed at a time
+    static public TextureGenerator.GenerateResult createTexturePage(BufferedImage image, TextureProfile textureProfile, boolean compress) throws TextureGeneratorException {
+        return PageTextures.generatePage(image, textureProfile, compress);
+    }
+
+    // Used from editor
+    static public TextureGenerator.GenerateResult combineTexturePages(boolean isPaged, List<TextureGenerator.GenerateResult> pages) {
+        TextureImage.Type textureImageType = isPaged ? TextureImage.Type.TYPE_2D_ARRAY : TextureImage.Type.TYPE_2D;
+        return TextureUtil.createCombinedTextureImage(pages.toArray(new TextureGenerator.GenerateResult[0]), textureImageType);
+    }
+
     // Used from editor
     // returns an array of floats (flattened (x,y)-tuples): [x0,y0,x1,y1,x2,...]
     static public float[] getTriangles(TextureSetLayout.SourceImage image, Float pageHeight) {
+        float[] out = new float[image.indices.size() * 2];
+        getTriangles(image, pageHeight, out, 0);
+        return out;
+    }
+
+    // Writes the triangle list of an image into 'out' (flattened (x,y)-tuples), starting at 'outOffset'.
+    // Returns the number of floats written (2 per index).
+    static public int getTriangles(TextureSetLayout.SourceImage image, float pageHeight, float[] out, int outOffset) {
 
         // The image may be rotated, then so is the rectangle
         float originalWidth = image.rotated ? image.rect.height : image.rect.width;
@@ -149,17 +168,36 @@ public class Atlas {
 
         //System.out.printf("image %s: %f, %f, %f, %f  %f\n", image.name, image.rect.x, image.rect.y, image.rect.width, image.rect.height, pageHeight);
 
-        float[] out = new float[image.indices.size() * 2];
-        int i = 0;
-        for (int index : image.indices) {
+        List<Integer> indices = image.indices;
+        List<TextureSetLayout.Point> vertices = image.vertices;
+
+        // The images of a PageGeometry are read directly from its arrays, without creating a Point per vertex
+        PageGeometry.Vertices flatVertices = vertices instanceof PageGeometry.Vertices ? (PageGeometry.Vertices)vertices : null;
+        PageGeometry.Indices flatIndices = indices instanceof PageGeometry.Indices ? (PageGeometry.Indices)indices : null;
+
+        int indexCount = indices.size();
+        int i = outOffset;
+        for (int n = 0; n < indexCount; ++n) {
+            int index = flatIndices != null ? flatIndices.indices[flatIndices.start + n] : indices.get(n);
             // The vertices are in image local space. Upright, regardless of rotation
-            TextureSetLayout.Point p = image.vertices.get(index);
+            float px;
+            float py;
+            if (flatVertices != null) {
+                if (index < 0 || index >= flatVertices.count)
+                    throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for length %d", index, flatVertices.count));
+                px = flatVertices.xy[(flatVertices.start + index) * 2 + 0];
+                py = flatVertices.xy[(flatVertices.start + index) * 2 + 1];
+            } else {
+                TextureSetLayout.Point p = vertices.get(index);
+                px = p.x;
+                py = p.y;
+            }
 
-            //System.out.printf("  p %d: %f, %f  w/h\n", index, p.x, p.y, image.rect.width, image.rect.height);
+            //System.out.printf("  p %d: %f, %f  w/h\n", index, px, py, image.rect.width, image.rect.height);
 
             // make it local around the center point
-            float x = p.x - half_width;
-            float y = p.y - half_height;
+            float x = px - half_width;
+            float y = py - half_height;
             //System.out.printf("  local: %f, %f\n", x, y);
 
             // A rotated image is stored with a 90 deg CW rotation
@@ -189,6 +227,39 @@ public class Atlas {
             out[i++] = x;
             out[i++] = y;
         }
+        return i - outOffset;
+    }
+
+    // Used from editor
+    // Returns the triangle lists of all images in the page, in one array of floats (flattened (x,y)-tuples).
+    // The 'outOffsets' array (image count + 1 entries) gets the start offset of each image in the returned array.
+    static public float[] getPageTriangles(TextureSetLayout.Page page, int[] outOffsets) {
+        List<TextureSetLayout.SourceImage> images = page.images;
+        int imageCount = images.size();
+        int floatCount = 0;
+        for (int i = 0; i < imageCount; ++i) {
+            floatCount += images.get(i).indices.size() * 2;
+        }
+
+        float[] out = new float[floatCount];
+        float pageHeight = page.size.height;
+        int offset = 0;
+        for (int i = 0; i < imageCount; ++i) {
+            outOffsets[i] = offset;
+            offset += getTriangles(images.get(i), pageHeight, out, offset);
+        }
+        outOffsets[imageCount] = offset;
+        return out;
+    }
+
+    // Returns the triangles of all pages, one array per page. The offsets are per page as well.
+    static public float[][] getAtlasTriangles(List<TextureSetLayout.Page> pages, int[][] outOffsets) {
+        float[][] out = new float[pages.size()][];
+        for (int i = 0; i < pages.size(); ++i) {
+            TextureSetLayout.Page page = pages.get(i);
+            outOffsets[i] = new int[page.images.size() + 1];
+            out[i] = getPageTriangles(page, outOffsets[i]);
+        }
         return out;
     }
 
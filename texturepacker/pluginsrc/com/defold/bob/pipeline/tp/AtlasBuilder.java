@@ -4,16 +4,15 @@
 package com.dynamo.bob.pipeline.tp;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-import java.awt.image.BufferedImage;
+import java.util.Set;
+import java.util.logging.Logger;
 
 import com.dynamo.bob.pipeline.BuilderUtil;
 import com.dynamo.bob.pipeline.ProtoUtil;
-import com.dynamo.bob.pipeline.TextureGenerator;
 
 import com.dynamo.bob.ProtoBuilder;
 import com.dynamo.bob.BuilderParams;
@@ -22,18 +21,15 @@ import com.dynamo.bob.ProtoParams;
 import com.dynamo.bob.Task;
 import com.dynamo.bob.fs.IResource;
 
-import com.dynamo.bob.pipeline.TextureGeneratorException;
 import com.dynamo.bob.textureset.TextureSetGenerator;
 import com.dynamo.bob.textureset.TextureSetGenerator.TextureSetResult;
 import com.dynamo.bob.textureset.TextureSetLayout;
-import com.dynamo.bob.util.TextureUtil;
 
 // Formats
 
 // BOB
 import com.dynamo.gamesys.proto.AtlasProto;
 import com.dynamo.graphics.proto.Graphics.TextureImage;
-import com.dynamo.graphics.proto.Graphics.TextureProfile;
 import com.dynamo.gamesys.proto.TextureSetProto.TextureSet; // Final engine format
 import com.dynamo.gamesys.proto.Tile.Playback;
 import com.dynamo.gamesys.proto.Tile.SpriteTrimmingMode;
@@ -51,13 +47,14 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
 
     static final String TEMPLATE_PATH = "texturepacker/editor/resources/templates/template.tpatlas";
 
+    private static Logger logger = Logger.getLogger(AtlasBuilder.class.getName());
+
     @Override
     public Task create(IResource input) throws IOException, CompileExceptionError {
         Task.TaskBuilder taskBuilder = Task.newBuilder(this)
                 .setName(params.name())
                 .addInput(input)
-                .addOutput(input.changeExt(params.outExt()))
-                .addOutput(input.changeExt(".texturec"));
+                .addOutput(input.changeExt(params.outExt()));
 
         AtlasDesc.Builder builder = getSrcBuilder(input);
 
@@ -66,15 +63,29 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
         IResource infoResource = input.getResource(builder.getFile());
         taskBuilder.addInput(infoResource);
 
-        Info.Atlas infoAtlas = Loader.load(infoResource.getContent());
+        List<TextureSetLayout.Page> pages = InfoCache.shared().get(infoResource.getPath(), infoResource.getContent()).getPages();
 
-        for (Info.Page page : infoAtlas.getPagesList()) {
-            IResource r = infoResource.getResource(page.getName());
+        List<ImageHeader> pageHeaders = new ArrayList<>();
+        for (TextureSetLayout.Page page : pages) {
+            IResource r = infoResource.getResource(page.name);
             BuilderUtil.checkResource(this.project, input, "page image", r.getPath());
-            taskBuilder.addInput(r);
+
+            // Only reads the image header. The pixels are decoded by the texture task, which gets the sizes in its input
+            ImageHeader header = ImageHeader.probe(r);
+            if (header != null && (header.width != (int)page.size.width || header.height != (int)page.size.height)) {
+                throw new CompileExceptionError(input, -1, String.format("Page image '%s' is %dx%d, but '%s' expects %dx%d",
+                                                    r.getPath(), header.width, header.height,
+                                                    infoResource.getPath(), (int)page.size.width, (int)page.size.height));
+            }
+            pageHeaders.add(header);
         }
 
-        TextureUtil.addTextureProfileInput(taskBuilder, this.project);
+        // The texture is built by its own task, which only depends on the settings that affect the texture.
+        // Only its input (the .tptexture) is added as the last input of this task, so that edits to the page
+        // images don't rebuild the texture set, and the two tasks can run in parallel
+        IResource textureInput = AtlasTextureBuilder.createInput(this.project, input, builder, infoResource, pageHeaders);
+        this.project.createTask(textureInput, AtlasTextureBuilder.class);
+        taskBuilder.addInput(textureInput);
 
         return taskBuilder.build();
     }
@@ -105,18 +116,17 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
 
     public static class MappedAnimIterator implements TextureSetGenerator.AnimIterator {
         final List<MappedAnimDesc> anims;
-        final List<String> imageIds; // The ordered list of the single frames
+        final FrameIndex frameIndex; // The index of each single frame id
         int nextAnimIndex;
         int nextFrameIndex;
 
-        public MappedAnimIterator(List<MappedAnimDesc> anims, List<String> imageIds) {
+        public MappedAnimIterator(List<MappedAnimDesc> anims, FrameIndex frameIndex) {
             this.anims = anims;
-            this.imageIds = imageIds;
+            this.frameIndex = frameIndex;
+        }
 
-            // System.out.printf("Image ids\n");
-            // for (String s : imageIds) {
-            //     System.out.printf("  image id: %s\n", s);
-            // }
+        public MappedAnimIterator(List<MappedAnimDesc> anims, List<String> imageIds) {
+            this(anims, new FrameIndex(imageIds));
         }
 
         @Override
@@ -132,7 +142,7 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
         public Integer nextFrameIndex() {
             MappedAnimDesc anim = anims.get(nextAnimIndex - 1);
             if (nextFrameIndex < anim.getIds().size()) {
-                int index = imageIds.indexOf(anim.getIds().get(nextFrameIndex++));
+                int index = frameIndex.indexOf(anim.getIds().get(nextFrameIndex++));
                 // We only really get here from the Editor,
                 // and I've not figured out why this code is called before checking the build errors
                 return index < 0 ? null : index;
@@ -178,104 +188,9 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
         return String.format("x/y: %f, %f", p.getX(), p.getY());
     }
 
-    static private TextureSetLayout.SourceImage createSprite(Info.Sprite srcSprite) {
-        TextureSetLayout.SourceImage out = new TextureSetLayout.SourceImage();
-
-        boolean rotated = srcSprite.getRotated();
-
-        out.setName(srcSprite.getName());
-        out.setRotated(rotated);
-
-        Info.Size originalSize= srcSprite.getUntrimmedSize(); // Original, unrotated size
-        Info.Rect tightRect   = srcSprite.getFrameRect(); // potentially rotated 90 deg CW
-        Info.Point offset     = srcSprite.getCornerOffset(); // unrotated
-
-        // The offset from the top left corner of the image, where to find the tight rect
-        float offsetx = offset.getX();
-        float offsety = offset.getY();
-
-        float x;
-        float y;
-        float width;
-        float height;
-
-        TextureSetLayout.Point pivot;
-        if (srcSprite.hasPivot()) // backwards compatibility
-            pivot = AtlasBuilder.createPoint(srcSprite.getPivot());
-        else
-        {
-            pivot = new TextureSetLayout.Point(originalSize.getWidth() * 0.5f, originalSize.getHeight() * 0.5f);
-        }
-
-        // Transform it like a regular vertex
-        pivot.y = originalSize.getHeight() - pivot.y;
-        out.setPivot(pivot);
-
-        // For legacy reasons, the other bob code wants it already rotated
-        if (rotated)
-        {
-            width = originalSize.getHeight();
-            height = originalSize.getWidth();
-
-            // When rotated, the "top left" of the image is now the top right
-            // and we need to use the tight rect to find it
-            float corner_x = tightRect.getX() + tightRect.getWidth() + offsety;
-            float corner_y = tightRect.getY() - offsetx;
-            x = corner_x - originalSize.getHeight();
-            y = corner_y;
-        }
-        else
-        {
-            x = tightRect.getX() - offsetx;
-            y = tightRect.getY() - offsety;
-            width = originalSize.getWidth();
-            height = originalSize.getHeight();
-        }
-
-
-        // boolean debug = (tightRect.getX() == 223 && tightRect.getY() == 60) || // boy_slash6
-        //                 (tightRect.getX() == 53 && tightRect.getY() == 40); // boy_death10
-        // if (debug)
-        // {
-        //     System.out.printf("originalSize %s\n", toString(originalSize));
-        //     System.out.printf("tightRect %s\n", toString(tightRect));
-        //     System.out.printf("offset %s\n", toString(offset));
-        //     System.out.printf("rotated %s\n", rotated ? "true" : "false");
-        //     System.out.printf("  ->\n");
-        //     System.out.printf("  offsetx/offsety %f %f\n", offsetx, offsety);
-        //     System.out.printf("  x/y %f, %f\n", x, y);
-        //     System.out.printf("  w/h %f, %f\n", width, height);
-        // }
-
-        out.setRect(new TextureSetLayout.Rectangle(x, y, width, height));
-
-        out.setIndices(new ArrayList<>(srcSprite.getIndicesList()));
-
-        ArrayList<TextureSetLayout.Point> vertices = new ArrayList<>();
-        for (Info.Point p : srcSprite.getVerticesList()) {
-            TextureSetLayout.Point pout = AtlasBuilder.createPoint(p);
-            // When they come from TP the vertices are upside down
-            // but othersize in the original image space (the way the builder wants it)
-            pout.y = originalSize.getHeight() - pout.y;
-
-            vertices.add(pout);
-        }
-        out.setVertices(vertices);
-
-        return out;
-    }
-
+    // The sprites are stored in flat arrays (see PageGeometry), and adapted to the SourceImage the bob code wants
     static public TextureSetLayout.Page createPage(int index, Info.Page srcPage) {
-        TextureSetLayout.Page page = new TextureSetLayout.Page();
-        page.index = index;
-        page.name = srcPage.getName();
-        page.images = new ArrayList<>();
-        page.size = AtlasBuilder.createSize(srcPage.getSize());
-
-        for (Info.Sprite sprite : srcPage.getSpritesList()) {
-            page.images.add(AtlasBuilder.createSprite(sprite));
-        }
-        return page;
+        return PageGeometry.create(index, srcPage).toLayoutPage();
     }
 
     static public List<TextureSetLayout.Page> createPages(Info.Atlas srcAtlas) {
@@ -287,6 +202,16 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
         return outPages;
     }
 
+    static public List<String> getFrameIds(List<TextureSetLayout.Page> pages) {
+        List<String> ids = new ArrayList<>();
+        for (TextureSetLayout.Page page : pages) {
+            for (TextureSetLayout.SourceImage image : page.images) {
+                ids.add(image.name);
+            }
+        }
+        return ids;
+    }
+
     static public List<String> getFrameIds(Info.Atlas srcAtlas) {
         List<String> ids = new ArrayList<>();
         for (Info.Page srcPage : srcAtlas.getPagesList()) {
@@ -316,53 +241,125 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
         return anims;
     }
 
+    // Creates the animations with the renamed image ids, without changing the tpatlas
+    static public List<MappedAnimDesc> createFlipBookAnimations(AtlasDesc.Builder tpatlas, RenamePatterns renames) {
+        List<MappedAnimDesc> anims = new ArrayList<>();
+        for (AtlasAnimation animation : tpatlas.getAnimationsList()) {
+            anims.add(new MappedAnimDesc(animation.getId(), renames.rename(animation.getImagesList()),
+                                            animation.getPlayback(), animation.getFps(),
+                                            animation.getFlipHorizontal() != 0,
+                                            animation.getFlipVertical() != 0));
+        }
+        return anims;
+    }
+
     static public List<MappedAnimDesc> createAnimations(AtlasDesc.Builder tpatlas, List<String> frameIds) {
         List<MappedAnimDesc> anims = createSingleFrameAnimations(frameIds);
         anims.addAll(createFlipBookAnimations(tpatlas));
         return anims;
     }
 
+    // The frameIds are expected to be renamed already
+    static public List<MappedAnimDesc> createAnimations(AtlasDesc.Builder tpatlas, List<String> frameIds, RenamePatterns renames) {
+        List<MappedAnimDesc> anims = createSingleFrameAnimations(frameIds);
+        anims.addAll(createFlipBookAnimations(tpatlas, renames));
+        return anims;
+    }
+
     static public void renameAnimations(AtlasDesc.Builder builder, String renamePatterns) throws CompileExceptionError {
-        List<AtlasAnimation> newAnimations = new ArrayList<>();
-        for (AtlasAnimation animation : builder.getAnimationsList()) {
-            AtlasAnimation.Builder animationBuilder = AtlasAnimation.newBuilder().mergeFrom(animation);
-            List<String> originalImages = animationBuilder.getImagesList();
-            List<String> newImages = Atlas.renameFrameIds(originalImages, renamePatterns);
+        renameAnimations(builder, new RenamePatterns(renamePatterns));
+    }
 
+    // Only rebuilds the animations that get new image ids
+    static public void renameAnimations(AtlasDesc.Builder builder, RenamePatterns renames) {
+        if (renames.isEmpty()) {
+            return;
+        }
+        int count = builder.getAnimationsCount();
+        for (int i = 0; i < count; ++i) {
+            AtlasAnimation animation = builder.getAnimations(i);
+            List<String> originalImages = animation.getImagesList();
+            if (!renames.changes(originalImages)) {
+                continue;
+            }
+            builder.setAnimations(i, AtlasAnimation.newBuilder().mergeFrom(animation)
+                                                    .clearImages()
+                                                    .addAllImages(renames.rename(originalImages))
+                                                    .build());
+        }
+    }
+
+    // Simplifies the sprite meshes, if the .tpatlas has a vertex budget. Otherwise returns the same pages
+    static public List<TextureSetLayout.Page> optimizeMeshes(AtlasDesc.Builder builder, List<TextureSetLayout.Page> pages, MeshOptimizer.Stats stats) {
+        if (builder.getMaxSpriteVertices() <= 0)
+            return pages;
+        return MeshOptimizer.optimize(pages, builder.getMaxSpriteVertices(), builder.getMaxSpriteExtraArea(), stats);
+    }
+
+    // If we want better control over it, we can add a setting for it
+    static TextureImage.Type getTextureImageType(boolean isPagedAtlas, int pageCount) {
+        if (pageCount == 1 && !isPagedAtlas)
+            return TextureImage.Type.TYPE_2D;
+        return TextureImage.Type.TYPE_2D_ARRAY;
+    }
+
+    // The size of each cropped page, or null if the pages can't be cropped.
+    // Used by both the texture set and the texture, so they get the same page sizes
+    static int[][] getCropSizes(List<TextureSetLayout.Page> meshPages, TextureImage.Type textureImageType) {
+        int[][] cropSizes = PageCrop.computeSizes(meshPages, textureImageType == TextureImage.Type.TYPE_2D_ARRAY);
+        return PageCrop.isCropped(meshPages, cropSizes) ? cropSizes : null;
+    }
 
-            animationBuilder.clearImages();
-            animationBuilder.addAllImages(newImages);
-            newAnimations.add(animationBuilder.build());
+    // Verifies that the frame ids are unique, and that the animations doesn't refer to an old image
+    static public List<String> validate(AtlasDesc.Builder builder, FrameIndex frameIndex, RenamePatterns renames, String infoPath) {
+        List<String> errors = new ArrayList<>();
+        for (String frameId : frameIndex.getDuplicates()) {
+            errors.add(String.format("Image id '%s' is not unique in file '%s'", frameId, infoPath));
         }
-        builder.clearAnimations();
-        builder.addAllAnimations(newAnimations);
+        for (AtlasAnimation animation : builder.getAnimationsList()) {
+            Set<String> missing = new LinkedHashSet<>();
+            for (String originalImage : animation.getImagesList()) {
+                String image = renames.rename(originalImage);
+                if (!frameIndex.contains(image)) {
+                    missing.add(image);
+                }
+            }
+            for (String image : missing) {
+                errors.add(String.format("Animation '%s' contains image '%s' that does not exist in file '%s'", animation.getId(), image, infoPath));
+            }
+        }
+        return errors;
     }
 
     @Override
     public void build(Task task) throws CompileExceptionError, IOException {
 
+        BuildReport.Entry report = BuildReport.begin(task.input(0).getPath());
+
+        report.begin("load");
         AtlasDesc.Builder builder = getSrcBuilder(task.firstInput());
 
-        Info.Atlas infoAtlas = Loader.load(task.input(1).getContent());
+        // Most likely already parsed by create(), or by another atlas using the same .tpinfo
+        byte[] infoContent = task.input(1).getContent();
+        InfoCache.Entry infoEntry = InfoCache.shared().get(task.input(1).getPath(), infoContent);
 
-        List<TextureSetLayout.Page> pages = AtlasBuilder.createPages(infoAtlas);
+        List<TextureSetLayout.Page> pages = infoEntry.getPages();
+        report.setBytes(infoContent.length, 0);
+        report.setLayoutCounts(pages);
 
-        List<String> frameIds = AtlasBuilder.getFrameIds(infoAtlas); // The unique frames
+        report.begin("rename");
 
-        // Now rename the images
-        String renamePatterns = builder.getRenamePatterns();
-        frameIds = Atlas.renameFrameIds(frameIds, renamePatterns);
+        List<String> frameIds = AtlasBuilder.getFrameIds(pages); // The unique frames
 
-        renameAnimations(builder, renamePatterns);
+        // Now rename the images. The animations refer to the same ids, and use the same renamed ids
+        RenamePatterns renames = new RenamePatterns(builder.getRenamePatterns());
+        frameIds = renames.rename(frameIds);
 
-        // verify that the animations doesn't refer to an old image
-        for (AtlasAnimation animation : builder.getAnimationsList()) {
-            for (String image : animation.getImagesList()) {
-                if (!frameIds.contains(image)) {
-                    throw new CompileExceptionError(task.input(0), -1,
-                            String.format("Animation '%s' contains image '%s' that does not exist in file '%s'", animation.getId(), image, task.input(1).getPath()));
-                }
-            }
+        FrameIndex frameIndex = new FrameIndex(frameIds);
+
+        List<String> errors = validate(builder, frameIndex, renames, task.input(1).getPath());
+        if (!errors.isEmpty()) {
+            throw new CompileExceptionError(task.input(0), -1, String.join("\n", errors));
         }
 
         // System.out.printf("FRAME IDS\n");
@@ -370,49 +367,68 @@ public class AtlasBuilder extends ProtoBuilder<AtlasDesc.Builder> {
         //     System.out.printf("  FRAME ID: %s\n", frameId);
         // }
 
-        List<MappedAnimDesc> animations = createAnimations(builder, frameIds);
-        MappedAnimIterator animIterator = new MappedAnimIterator(animations, frameIds);
-
-        List<TextureSetLayout.Layout> layouts = TextureSetLayout.createTextureSet(pages);
-        TextureSetResult result = TextureSetGenerator.createTextureSet(layouts, animIterator);
-
-        // If we want better control over it, we can add a setting for it
-        TextureImage.Type textureImageType = TextureImage.Type.TYPE_2D_ARRAY;
-        if (layouts.size() == 1) {
-            if (!builder.getIsPagedAtlas()) {
-                textureImageType = TextureImage.Type.TYPE_2D;
-            }
+        List<MappedAnimDesc> animations = createAnimations(builder, frameIds, renames);
+        MappedAnimIterator animIterator = new MappedAnimIterator(animations, frameIndex);
+        report.setCount("animations", animations.size());
+
+        // The optimized pages are only used for the texture set geometry
+        report.begin("optimize_meshes");
+        MeshOptimizer.Stats meshStats = new MeshOptimizer.Stats();
+        List<TextureSetLayout.Page> meshPages = optimizeMeshes(builder, pages, meshStats);
+        if (meshPages != pages) {
+            logger.info(String.format("%s: optimized meshes: %s", task.input(0).getPath(), meshStats));
+            report.setCount("optimized_vertices", meshStats.verticesAfter);
+            report.setCount("optimized_indices", meshStats.indicesAfter);
         }
 
-        int pageCount = textureImageType == TextureImage.Type.TYPE_2D_ARRAY ? layouts.size() : 0;
-
-        int buildDirLen         = project.getBuildDirectory().length();
-        String texturePath      = task.output(1).getPath().substring(buildDirLen);
-        TextureSet textureSet   = result.builder.setPageCount(pageCount)
-                                                .setTexture(texturePath)
-                                                .build();
+        TextureImage.Type textureImageType = getTextureImageType(builder.getIsPagedAtlas(), meshPages.size());
 
-        TextureProfile texProfile = TextureUtil.getTextureProfileByPath(task.lastInput(), task.input(0).getPath());
+        int pageCount = textureImageType == TextureImage.Type.TYPE_2D_ARRAY ? meshPages.size() : 0;
 
-        List<IResource> imageResources = new ArrayList<>();
-        for (Info.Page page : infoAtlas.getPagesList()) {
-            IResource r = task.input(1).getResource(page.getName());
-            imageResources.add(r);
+        // Removes the unused space at the right and bottom of the pages
+        int[][] cropSizes = null;
+        if (builder.getCropPages()) {
+            report.begin("crop_pages");
+            cropSizes = getCropSizes(meshPages, textureImageType);
+            if (cropSizes != null) {
+                long savedTexels = PageCrop.getSavedTexels(meshPages, cropSizes);
+                logger.info(String.format("%s: cropped pages to %s, saved %d texels (%d KB as RGBA)", task.input(0).getPath(),
+                                            PageCrop.toString(cropSizes), savedTexels, savedTexels * 4 / 1024));
+                report.setCount("cropped_texels_saved", savedTexels);
+            }
         }
-        List<BufferedImage> textureImages = TextureUtil.loadImages(imageResources);
-
-        boolean compress = project.option("texture-compression", "false").equals("true");
-
-        TextureGenerator.GenerateResult generateResult = null;
-        try {
-            generateResult = TextureUtil.createMultiPageTexture(textureImages, textureImageType, texProfile, compress);
-        } catch (TextureGeneratorException e) {
-            throw new CompileExceptionError(task.input(0), -1, e.getMessage(), e);
+        List<TextureSetLayout.Page> layoutPages = cropSizes != null ? PageCrop.cropPages(meshPages, cropSizes) : meshPages;
+
+        // Atlases with the same layout and animations (e.g. skins) share the texture set, which only differs in the texture path
+        report.begin("texture_set_key");
+        String textureSetKey = TextureSetCache.key(layoutPages, frameIds, builder, renames, pageCount);
+        boolean[] sharedTextureSet = new boolean[1];
+        TextureSet layoutTextureSet = TextureSetCache.shared().get(textureSetKey, () -> {
+            report.begin("create_layouts");
+            List<TextureSetLayout.Layout> layouts = TextureSetLayout.createTextureSet(layoutPages);
+
+            report.begin("create_texture_set");
+            TextureSetResult result = TextureSetGenerator.createTextureSet(layouts, animIterator);
+            return result.builder.setPageCount(pageCount).buildPartial();
+        }, sharedTextureSet);
+        if (sharedTextureSet[0]) {
+            logger.info(String.format("%s: reused the texture set of an atlas with the same layout", task.input(0).getPath()));
         }
+        report.setCount("shared_texture_set", sharedTextureSet[0] ? 1 : 0);
+
+        // The texture is the output of the AtlasTextureBuilder task
+        int buildDirLen         = project.getBuildDirectory().length();
+        String texturePath      = AtlasTextureBuilder.getOutput(task.lastInput()).getPath().substring(buildDirLen);
+        TextureSet textureSet   = layoutTextureSet.toBuilder()
+                                                  .setTexture(texturePath)
+                                                  .build();
 
         //System.out.printf("DEBUG: %s\n", TextFormat.printToString(textureSet));
 
-        task.output(0).setContent(textureSet.toByteArray());
-        TextureUtil.writeGenerateResultToResource(generateResult, task.output(1));
+        report.begin("write");
+        byte[] textureSetData = textureSet.toByteArray();
+        task.output(0).setContent(textureSetData);
+        report.setBytes(0, textureSetData.length);
+        report.finish();
     }
 }
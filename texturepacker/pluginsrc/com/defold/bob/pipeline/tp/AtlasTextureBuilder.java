@@ -0,0 +1,200 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynamo.bob.BuilderParams;
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.Project;
+import com.dynamo.bob.ProtoBuilder;
+import com.dynamo.bob.ProtoParams;
+import com.dynamo.bob.Task;
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.pipeline.TextureGenerator;
+import com.dynamo.bob.pipeline.TextureGeneratorException;
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.bob.util.MurmurHash;
+import com.dynamo.bob.util.TextureUtil;
+import com.dynamo.graphics.proto.Graphics.TextureImage;
+import com.dynamo.graphics.proto.Graphics.TextureProfile;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+import com.dynamo.texturepacker.proto.Atlas.AtlasPageImage;
+import com.dynamo.texturepacker.proto.Atlas.AtlasTextureDesc;
+
+import com.google.protobuf.TextFormat;
+
+// Builds the texture of a .tpatlas, in a task of its own, next to the AtlasBuilder task.
+// The input is a generated AtlasTextureDesc, with only the settings that affect the texture,
+// so the task signature doesn't change when the animations or the rename patterns are edited,
+// and bob doesn't rebuild the texture then.
+@ProtoParams(srcClass = AtlasTextureDesc.class, messageClass = AtlasTextureDesc.class)
+@BuilderParams(name="TexturePackerAtlasTexture", inExts=".tptexture", outExt = ".texturec", isCacheble = true, paramsForSignature = {"texture-compression"})
+public class AtlasTextureBuilder extends ProtoBuilder<AtlasTextureDesc.Builder> {
+
+    static final String INPUT_EXT = "tptexture";
+
+    private static Logger logger = Logger.getLogger(AtlasTextureBuilder.class.getName());
+
+    // Creates the generated input for the texture task of an atlas.
+    // The atlas path is part of the content, so each atlas gets its own resource (and texture).
+    // The page image headers (an entry may be null) are probed by the AtlasBuilder
+    static public IResource createInput(Project project, IResource atlas, AtlasDesc.Builder tpatlas, IResource infoResource, List<ImageHeader> pageHeaders) throws IOException {
+        AtlasTextureDesc.Builder desc = AtlasTextureDesc.newBuilder()
+                .setAtlas(atlas.getPath())
+                .setFile(infoResource.getPath())
+                .setIsPagedAtlas(tpatlas.getIsPagedAtlas());
+        for (ImageHeader header : pageHeaders) {
+            AtlasPageImage.Builder pageImage = AtlasPageImage.newBuilder();
+            if (header != null) {
+                pageImage.setWidth(header.width)
+                         .setHeight(header.height)
+                         .setDecodedSize(header.getDecodedSize());
+            }
+            desc.addPageImages(pageImage);
+        }
+        // The mesh settings only matter for the crop
+        if (tpatlas.getCropPages()) {
+            desc.setCropPages(true)
+                .setMaxSpriteVertices(tpatlas.getMaxSpriteVertices())
+                .setMaxSpriteExtraArea(tpatlas.getMaxSpriteExtraArea());
+        }
+        String text = TextFormat.printToString(desc.build());
+        IResource resource = project.createGeneratedResource(MurmurHash.hash64(text), INPUT_EXT);
+        resource.setContent(text.getBytes(StandardCharsets.UTF_8));
+        return resource;
+    }
+
+    // The texture task output of a generated input (see createInput)
+    static public IResource getOutput(IResource input) {
+        return input.changeExt(".texturec");
+    }
+
+    @Override
+    public Task create(IResource input) throws IOException, CompileExceptionError {
+        Task.TaskBuilder taskBuilder = Task.newBuilder(this)
+                .setName(params.name())
+                .addInput(input)
+                .addOutput(input.changeExt(params.outExt()));
+
+        AtlasTextureDesc.Builder builder = getSrcBuilder(input);
+
+        IResource infoResource = input.getResource(builder.getFile());
+        taskBuilder.addInput(infoResource);
+
+        // The page images (and their sizes) were checked by the AtlasBuilder
+        List<TextureSetLayout.Page> pages = InfoCache.shared().get(infoResource.getPath(), infoResource.getContent()).getPages();
+        for (TextureSetLayout.Page page : pages) {
+            taskBuilder.addInput(infoResource.getResource(page.name));
+        }
+
+        TextureUtil.addTextureProfileInput(taskBuilder, this.project);
+
+        return taskBuilder.build();
+    }
+
+    // Only encodes the pages whose images changed since the last build, and reuses the rest from the page cache.
+    // The page keys cover the image content and the texture settings, so the cache itself tells which pages changed,
+    // without keeping any state of the previous build.
+    private TextureGenerator.GenerateResult createIncrementalTexture(String atlasPath, List<IResource> imageResources, long[] pageMemory, PageCache pageCache,
+                                                                    TextureImage.Type textureImageType, TextureProfile texProfile, boolean compress, int[][] cropSizes,
+                                                                    BuildReport.Entry report) throws TextureGeneratorException, IOException, CompileExceptionError {
+        List<String> pageKeys = new ArrayList<>();
+        for (int i = 0; i < imageResources.size(); ++i) {
+            pageKeys.add(PageCache.key(imageResources.get(i).getContent(), texProfile, compress, textureImageType, cropSizes != null ? cropSizes[i] : null));
+        }
+
+        List<Integer> generatedPages = new ArrayList<>();
+        TextureGenerator.GenerateResult result = PageTextures.createMultiPageTexture(imageResources, pageMemory, pageKeys, pageCache, textureImageType, texProfile, compress, cropSizes, generatedPages);
+        Collections.sort(generatedPages);
+        report.setCount("encoded_pages", generatedPages.size());
+
+        // Only the builds that actually encoded something are worth a line in the log
+        Level level = generatedPages.isEmpty() ? Level.FINE : Level.INFO;
+        if (logger.isLoggable(level)) {
+            logger.log(level, String.format("%s: reused %d of %d pages, encoded pages %s",
+                                            atlasPath, imageResources.size() - generatedPages.size(), imageResources.size(), generatedPages));
+        }
+        return result;
+    }
+
+    @Override
+    public void build(Task task) throws CompileExceptionError, IOException {
+        AtlasTextureDesc.Builder builder = getSrcBuilder(task.firstInput());
+        String atlasPath = builder.getAtlas();
+        IResource atlas = task.firstInput().getResource(atlasPath);
+
+        BuildReport.Entry report = BuildReport.begin(atlasPath + ".texturec");
+
+        report.begin("load");
+        IResource infoResource = task.input(1);
+        byte[] infoContent = infoResource.getContent();
+        List<TextureSetLayout.Page> pages = InfoCache.shared().get(infoResource.getPath(), infoContent).getPages();
+        report.setBytes(infoContent.length, 0);
+
+        TextureImage.Type textureImageType = AtlasBuilder.getTextureImageType(builder.getIsPagedAtlas(), pages.size());
+
+        // The same crop as the texture set of the atlas, which is computed from the optimized meshes
+        int[][] cropSizes = null;
+        if (builder.getCropPages()) {
+            report.begin("crop_pages");
+            List<TextureSetLayout.Page> meshPages = pages;
+            if (builder.getMaxSpriteVertices() > 0) {
+                meshPages = MeshOptimizer.optimize(pages, builder.getMaxSpriteVertices(), builder.getMaxSpriteExtraArea(), new MeshOptimizer.Stats());
+            }
+            cropSizes = AtlasBuilder.getCropSizes(meshPages, textureImageType);
+        }
+
+        TextureProfile texProfile = TextureUtil.getTextureProfileByPath(task.lastInput(), atlasPath);
+
+        List<IResource> imageResources = new ArrayList<>();
+        for (TextureSetLayout.Page page : pages) {
+            imageResources.add(infoResource.getResource(page.name));
+        }
+        // The page image sizes are part of the input, so the headers aren't read again
+        long[] decodedSizes = null;
+        if (builder.getPageImagesCount() == pages.size()) {
+            decodedSizes = new long[pages.size()];
+            for (int i = 0; i < pages.size(); ++i) {
+                decodedSizes[i] = builder.getPageImages(i).getDecodedSize();
+            }
+        }
+        boolean compress = project.option("texture-compression", "false").equals("true");
+
+        // The page images are decoded one at a time, at their full (uncropped) size
+        long[] pageMemory = PageTextures.getPageMemory(pages, decodedSizes);
+
+        TextureGenerator.GenerateResult generateResult = null;
+        try {
+            report.begin("create_texture");
+            PageCache pageCache = PageCache.shared();
+            if (pageCache != null) {
+                // Loads the images of the pages that aren't cached
+                generateResult = createIncrementalTexture(atlasPath, imageResources, pageMemory, pageCache, textureImageType, texProfile, compress, cropSizes, report);
+            } else {
+                generateResult = PageTextures.createMultiPageTexture(imageResources, pageMemory, cropSizes, textureImageType, texProfile, compress);
+            }
+        } catch (TextureGeneratorException e) {
+            throw new CompileExceptionError(atlas, -1, e.getMessage(), e);
+        }
+
+        report.begin("write");
+        TextureUtil.writeGenerateResultToResource(generateResult, task.output(0));
+
+        if (report.isEnabled()) {
+            long textureSize = 0;
+            for (byte[] data : generateResult.imageDatas) {
+                textureSize += data.length;
+            }
+            report.setBytes(0, textureSize);
+        }
+        report.finish();
+    }
+}
@@ -0,0 +1,414 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+import com.dynamo.texturepacker.proto.Info;
+import com.google.protobuf.TextFormat;
+
+// Watches the .tpatlas, .tpinfo and page image files of a project, and rebuilds the affected atlases
+// as soon as they change. The jvm and the caches stay warm between rebuilds, so the feedback after a
+// TexturePacker export is much quicker than a cold test_plugin.sh run or a full bob build.
+// A burst of writes (e.g. an export of many pages) is collected into a single rebuild.
+// The texture sets are built the same way as in BatchBuilder, and the page images are checked against
+// the page sizes. With --textures, the changed page images are also encoded (uncompressed).
+// The changes of each reloaded .tpinfo are listed, with the names of the changed sprites (see InfoDiff).
+public class AtlasWatcher {
+
+    static final String USAGE = "Usage: ./utils/watch_atlases.sh [--threads n] [--warmup n] [--debounce ms] [--textures] [--root dir] (file|dir)...\n";
+
+    static final long DEFAULT_DEBOUNCE_MS = 200;
+    static final int MAX_LISTED_SPRITES = 20;   // The changed sprites listed per .tpinfo
+
+    private static class Target {
+        final File file;
+        Set<Path> dependencies = new LinkedHashSet<>(); // Absolute paths, including the file itself
+
+        Target(File file) {
+            this.file = file;
+        }
+    }
+
+    private final List<File> roots;
+    private final File projectRoot; // May be null
+    private final boolean generateTextures;
+    private final ExecutorService executor;
+
+    private final Map<Path, Target> targets = new LinkedHashMap<>();
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Map<Path, String> encodedImages = new ConcurrentHashMap<>(); // The content hash of the last encoded page images
+    private final AtomicInteger encodedCount = new AtomicInteger();
+    private final Map<Path, byte[]> infoContents = new ConcurrentHashMap<>(); // The last built content of each .tpinfo
+    private final Map<Path, InfoDiff> infoDiffs = new ConcurrentHashMap<>(); // The .tpinfo changes of the current rebuild
+
+    public AtlasWatcher(List<File> roots, File projectRoot, int threadCount, boolean generateTextures) throws IOException {
+        this.roots = roots;
+        this.projectRoot = projectRoot;
+        this.generateTextures = generateTextures;
+        this.executor = Executors.newFixedThreadPool(threadCount);
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    static private Path toPath(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    static private boolean isAtlasFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(".tpatlas") || name.endsWith(".tpinfo");
+    }
+
+    // Finds the .tpatlas/.tpinfo files, keeping the dependencies of the targets we already know
+    private void scan() {
+        List<File> files = new ArrayList<>();
+        for (File root : roots) {
+            BatchBuilder.collectFiles(root, files);
+        }
+        Map<Path, Target> previous = new HashMap<>(targets);
+        targets.clear();
+        for (File file : files) {
+            Path path = toPath(file);
+            Target target = previous.get(path);
+            targets.put(path, target != null ? target : new Target(file));
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        if (watchedDirs.containsValue(dir) || !Files.isDirectory(dir))
+            return;
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                                  StandardWatchEventKinds.ENTRY_MODIFY,
+                                                  StandardWatchEventKinds.ENTRY_DELETE);
+        watchedDirs.put(key, dir);
+    }
+
+    // Watches the root directories (recursively), and the directories of all dependencies
+    private void registerAll() throws IOException {
+        for (File root : roots) {
+            if (root.isDirectory()) {
+                try (Stream<Path> dirs = Files.walk(toPath(root))) {
+                    for (Path dir : (Iterable<Path>)dirs.filter(Files::isDirectory)::iterator) {
+                        register(dir);
+                    }
+                }
+            } else {
+                register(toPath(root).getParent());
+            }
+        }
+        for (Target target : targets.values()) {
+            for (Path dependency : target.dependencies) {
+                register(dependency.getParent());
+            }
+        }
+    }
+
+    // Builds the texture set of a single target, and finds its dependencies on the way
+    private BatchBuilder.Result build(Target target) {
+        BatchBuilder.Result result = new BatchBuilder.Result();
+        result.path = target.file.getPath();
+
+        Set<Path> dependencies = new LinkedHashSet<>();
+        dependencies.add(toPath(target.file));
+
+        long timeStart = System.nanoTime();
+        try {
+            AtlasDesc.Builder builder = null;
+            File infoFile = target.file;
+            if (target.file.getName().endsWith(".tpatlas")) {
+                builder = AtlasDesc.newBuilder();
+                TextFormat.merge(new String(Files.readAllBytes(target.file.toPath()), StandardCharsets.UTF_8), builder);
+                infoFile = BatchBuilder.resolveInfoFile(target.file, builder.getFile(), projectRoot);
+                dependencies.add(toPath(infoFile));
+            }
+
+            if (!infoFile.exists())
+                throw new IOException(String.format("File does not exist: %s", infoFile));
+
+            // An unchanged .tpinfo (e.g. when only a page image or the .tpatlas changed) isn't parsed again
+            byte[] infoContent = Files.readAllBytes(infoFile.toPath());
+            Info.Atlas tpinfo = InfoCache.shared().get(infoFile.getPath(), infoContent).getAtlas();
+            byte[] previousContent = infoContents.put(toPath(infoFile), infoContent);
+            if (previousContent != null && !Arrays.equals(previousContent, infoContent)) {
+                infoDiffs.put(toPath(infoFile), InfoDiff.diff(previousContent, infoContent));
+            }
+            Atlas atlas = Atlas.createAtlasInternal(result.path, builder, tpinfo);
+
+            List<String> errors = new ArrayList<>();
+            if (builder != null) {
+                errors.addAll(AtlasBuilder.validate(builder, atlas.frameIndex, atlas.renames, infoFile.getPath()));
+            }
+
+            if (errors.isEmpty()) {
+                Atlas.createTextureSetResult(result.path, atlas, "");
+            }
+
+            File infoDir = infoFile.getAbsoluteFile().getParentFile();
+            for (TextureSetLayout.Page page : atlas.pages) {
+                File imageFile = new File(infoDir, page.name);
+                dependencies.add(toPath(imageFile));
+                String error = checkPageImage(imageFile, page, infoFile);
+                if (error != null) {
+                    errors.add(error);
+                }
+                result.sprites += page.images.size();
+            }
+            result.pages = atlas.pages.size();
+
+            if (!errors.isEmpty())
+                throw new IOException(String.join("\n", errors));
+        } catch (Exception e) {
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        result.timeNs = System.nanoTime() - timeStart;
+
+        synchronized (target) {
+            target.dependencies = dependencies;
+        }
+        return result;
+    }
+
+    // Returns an error message, or null if the image is ok
+    private String checkPageImage(File imageFile, TextureSetLayout.Page page, File infoFile) throws Exception {
+        if (!imageFile.exists())
+            return String.format("Page image '%s' does not exist", imageFile);
+
+        byte[] content = Files.readAllBytes(imageFile.toPath());
+        ImageHeader header = ImageHeader.read(content);
+        if (header != null && (header.width != (int)page.size.width || header.height != (int)page.size.height)) {
+            return String.format("Page image '%s' is %dx%d, but '%s' expects %dx%d",
+                                    imageFile, header.width, header.height,
+                                    infoFile, (int)page.size.width, (int)page.size.height);
+        }
+
+        if (generateTextures) {
+            // Only the images that changed since they were last encoded
+            String hash = InfoCache.hash(content);
+            if (!hash.equals(encodedImages.put(toPath(imageFile), hash))) {
+                BufferedImage image = ImageIO.read(imageFile);
+                if (image == null) {
+                    encodedImages.remove(toPath(imageFile));
+                    return String.format("Page image '%s' could not be decoded", imageFile);
+                }
+                PageTextures.generatePage(image, null, false);
+                encodedCount.incrementAndGet();
+            }
+        }
+        return null;
+    }
+
+    private List<BatchBuilder.Result> buildAll(List<Target> list) throws InterruptedException {
+        List<Future<BatchBuilder.Result>> futures = new ArrayList<>();
+        for (Target target : list) {
+            futures.add(executor.submit(() -> build(target)));
+        }
+        List<BatchBuilder.Result> results = new ArrayList<>();
+        for (Future<BatchBuilder.Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause()); // build() catches its own exceptions
+            }
+        }
+        return results;
+    }
+
+    private void rebuild(List<Target> list, String reason) throws InterruptedException {
+        if (list.isEmpty())
+            return;
+        encodedCount.set(0);
+        infoDiffs.clear();
+        long timeStart = System.nanoTime();
+        List<BatchBuilder.Result> results = buildAll(list);
+        long timeTotal = System.nanoTime() - timeStart;
+
+        int failed = 0;
+        for (BatchBuilder.Result result : results) {
+            if (result.error != null) {
+                System.out.printf("  FAILED %8.2f ms  %s\n    %s\n", BatchBuilder.toMs(result.timeNs), result.path, result.error.replace("\n", "\n    "));
+                failed++;
+            } else {
+                System.out.printf("  ok     %8.2f ms  %s (%d sprites, %d pages)\n", BatchBuilder.toMs(result.timeNs), result.path, result.sprites, result.pages);
+            }
+        }
+        for (Map.Entry<Path, InfoDiff> e : infoDiffs.entrySet()) {
+            System.out.printf("  %s: %s\n", e.getKey(), e.getValue());
+            Set<String> sprites = e.getValue().getAffectedSprites();
+            if (!sprites.isEmpty()) {
+                System.out.printf("    %s\n", formatNames(sprites, MAX_LISTED_SPRITES));
+            }
+        }
+        String textures = generateTextures ? String.format(", encoded %d page images", encodedCount.get()) : "";
+        System.out.printf("Rebuilt %d atlases (%d failed)%s in %.1f ms, %s\n", results.size(), failed, textures, BatchBuilder.toMs(timeTotal), reason);
+        System.out.flush();
+    }
+
+    // A comma separated list of the first names, and the number of names left out
+    static String formatNames(Collection<String> names, int max) {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (String name : names) {
+            if (count == max)
+                break;
+            if (count++ > 0)
+                sb.append(", ");
+            sb.append(name);
+        }
+        if (names.size() > max)
+            sb.append(String.format(" (and %d more)", names.size() - max));
+        return sb.toString();
+    }
+
+    // The targets that depend on any of the changed files
+    private List<Target> getAffected(Set<Path> changed) {
+        List<Target> affected = new ArrayList<>();
+        for (Target target : targets.values()) {
+            Set<Path> dependencies;
+            synchronized (target) {
+                dependencies = target.dependencies;
+            }
+            for (Path path : changed) {
+                if (dependencies.contains(path) || toPath(target.file).equals(path)) {
+                    affected.add(target);
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    // Collects the events of a key. Returns false if the event queue overflowed
+    private boolean collect(WatchKey key, Set<Path> changed) throws IOException {
+        Path dir = watchedDirs.get(key);
+        boolean complete = true;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                complete = false;
+                continue;
+            }
+            if (dir == null)
+                continue;
+            Path path = dir.resolve((Path)event.context()).normalize();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                register(path); // A new sub directory
+            }
+            changed.add(path);
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key); // The directory was removed
+        }
+        return complete;
+    }
+
+    public void run(int warmup, long debounceMs) throws IOException, InterruptedException {
+        scan();
+        // Let the jit compile the hot paths before the first timed build
+        for (int i = 0; i < warmup; ++i) {
+            buildAll(new ArrayList<>(targets.values()));
+            encodedImages.clear();
+        }
+        rebuild(new ArrayList<>(targets.values()), "initial build");
+        registerAll();
+        System.out.printf("Watching %d atlases in %d directories. Press Ctrl+C to stop\n", targets.size(), watchedDirs.size());
+        System.out.flush();
+
+        while (true) {
+            WatchKey key = watchService.take();
+            long timeFirstEvent = System.nanoTime();
+            Set<Path> changed = new LinkedHashSet<>();
+            boolean complete = collect(key, changed);
+
+            // Wait until the writes have settled
+            while ((key = watchService.poll(debounceMs, TimeUnit.MILLISECONDS)) != null) {
+                complete &= collect(key, changed);
+            }
+
+            boolean rescan = !complete;
+            for (Path path : changed) {
+                if (isAtlasFile(path) && (targets.containsKey(path) != Files.exists(path))) {
+                    rescan = true; // An added or removed atlas
+                } else if (Files.isDirectory(path)) {
+                    rescan = true; // A new directory may already contain atlases
+                }
+            }
+            if (rescan) {
+                scan();
+            }
+
+            List<Target> affected = complete ? getAffected(changed) : new ArrayList<>(targets.values());
+            String reason = String.format("%.1f ms after the first change (%s)", BatchBuilder.toMs(System.nanoTime() - timeFirstEvent),
+                                          complete ? String.format("%d changed files", changed.size()) : "events were lost");
+            rebuild(affected, reason);
+            registerAll(); // The dependencies may have moved
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int warmup = 0;
+        long debounceMs = DEFAULT_DEBOUNCE_MS;
+        boolean generateTextures = false;
+        File root = null;
+        List<File> roots = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threadCount = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--debounce") && i + 1 < args.length) {
+                debounceMs = Math.max(1, Long.parseLong(args[++i]));
+            } else if (args[i].equals("--textures")) {
+                generateTextures = true;
+            } else if (args[i].equals("--root") && i + 1 < args.length) {
+                root = new File(args[++i]);
+            } else {
+                File file = new File(args[i]);
+                if (!file.exists())
+                    throw new IOException(String.format("File does not exist: %s", file));
+                roots.add(file);
+            }
+        }
+
+        if (roots.isEmpty()) {
+            System.err.printf(USAGE);
+            System.exit(1);
+        }
+
+        new AtlasWatcher(roots, root, threadCount, generateTextures).run(warmup, debounceMs);
+    }
+}
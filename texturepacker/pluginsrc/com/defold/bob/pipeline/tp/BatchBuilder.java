@@ -0,0 +1,220 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+import com.dynamo.texturepacker.proto.Info;
+import com.google.protobuf.TextFormat;
+
+// Builds the texture sets of many .tpatlas/.tpinfo files in one jvm, using a pool of worker threads.
+// Used to validate a whole project, and to measure the throughput of the atlas pipeline.
+// The textures are not generated.
+public class BatchBuilder {
+
+    static final String USAGE = "Usage: ./utils/batch_build.sh [--threads n] [--warmup n] [--root dir] (file|dir)...\n";
+
+    public static class Result {
+        public String   path;
+        public long     timeNs;
+        public int      sprites;
+        public int      pages;
+        public String   error; // null if successful
+    }
+
+    static void collectFiles(File file, List<File> out) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null)
+                return;
+            Arrays.sort(children);
+            for (File child : children) {
+                collectFiles(child, out);
+            }
+        } else {
+            String name = file.getName();
+            if (name.endsWith(".tpatlas") || name.endsWith(".tpinfo")) {
+                out.add(file);
+            }
+        }
+    }
+
+    // Returns the closest parent directory with a game.project file, or null
+    static private File findProjectRoot(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        while (dir != null) {
+            if (new File(dir, "game.project").exists())
+                return dir;
+            dir = dir.getParentFile();
+        }
+        return null;
+    }
+
+    static File resolveInfoFile(File tpatlasFile, String path, File root) {
+        if (path.startsWith("/")) {
+            File projectRoot = root != null ? root : findProjectRoot(tpatlasFile);
+            if (projectRoot == null)
+                projectRoot = new File(".");
+            return new File(projectRoot, path.substring(1));
+        }
+        return new File(tpatlasFile.getAbsoluteFile().getParentFile(), path);
+    }
+
+    // Builds the texture set of a single file, the same way as the editor does
+    static public Result build(File file, File root) {
+        Result result = new Result();
+        result.path = file.getPath();
+
+        long timeStart = System.nanoTime();
+        try {
+            AtlasDesc.Builder builder = null;
+            File infoFile = file;
+            if (file.getName().endsWith(".tpatlas")) {
+                builder = AtlasDesc.newBuilder();
+                TextFormat.merge(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), builder);
+                infoFile = resolveInfoFile(file, builder.getFile(), root);
+            }
+
+            if (!infoFile.exists())
+                throw new IOException(String.format("File does not exist: %s", infoFile));
+
+            Info.Atlas tpinfo = Loader.load(infoFile);
+            Atlas atlas = Atlas.createAtlasInternal(result.path, builder, tpinfo);
+
+            if (builder != null) {
+                List<String> errors = AtlasBuilder.validate(builder, atlas.frameIndex, atlas.renames, infoFile.getPath());
+                // The simplified meshes mustn't sample the texels of the other sprites
+                if (builder.getMaxSpriteVertices() > 0)
+                    errors.addAll(MeshOptimizer.findOverlaps(AtlasBuilder.createPages(tpinfo), atlas.pages));
+                if (!errors.isEmpty())
+                    throw new IOException(String.join("\n", errors));
+            }
+
+            Atlas.createTextureSetResult(result.path, atlas, "");
+
+            result.pages = atlas.pages.size();
+            for (TextureSetLayout.Page page : atlas.pages) {
+                result.sprites += page.images.size();
+            }
+        } catch (Exception e) {
+            result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        result.timeNs = System.nanoTime() - timeStart;
+        return result;
+    }
+
+    static public List<Result> buildAll(List<File> files, File root, int threadCount) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(executor.submit(() -> build(file, root)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause()); // build() catches its own exceptions
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // The value at percentile p (0-100) of the sorted values
+    static private long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    static double toMs(long ns) {
+        return ns / 1000000.0;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int warmup = 0;
+        File root = null;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threadCount = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--root") && i + 1 < args.length) {
+                root = new File(args[++i]);
+            } else {
+                File file = new File(args[i]);
+                if (!file.exists())
+                    throw new IOException(String.format("File does not exist: %s", file));
+                collectFiles(file, files);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.printf(USAGE);
+            System.exit(1);
+        }
+
+        // Let the jit compile the hot paths before we measure
+        for (int i = 0; i < warmup; ++i) {
+            buildAll(files, root, threadCount);
+        }
+
+        long timeStart = System.nanoTime();
+        List<Result> results = buildAll(files, root, threadCount);
+        long timeTotal = System.nanoTime() - timeStart;
+
+        long sprites = 0;
+        int failed = 0;
+        long[] times = new long[results.size()];
+        for (int i = 0; i < results.size(); ++i) {
+            Result result = results.get(i);
+            times[i] = result.timeNs;
+            sprites += result.sprites;
+            if (result.error != null) {
+                System.out.printf("FAILED: %s\n    %s\n", result.path, result.error.replace("\n", "\n    "));
+                failed++;
+            }
+        }
+        Arrays.sort(times);
+
+        double seconds = timeTotal / 1000000000.0;
+        System.out.printf("Built %d files (%d failed) using %d threads in %.1f ms\n", results.size(), failed, threadCount, toMs(timeTotal));
+        System.out.printf("Throughput: %.1f atlases/s, %.1f sprites/s\n", results.size() / seconds, sprites / seconds);
+        System.out.printf("Latency (ms): p50 %.2f  p90 %.2f  p99 %.2f  max %.2f\n",
+                            toMs(percentile(times, 50)), toMs(percentile(times, 90)), toMs(percentile(times, 99)), toMs(percentile(times, 100)));
+
+        List<Result> slowest = new ArrayList<>(results);
+        Collections.sort(slowest, Comparator.comparingLong((Result r) -> r.timeNs).reversed());
+        System.out.printf("Slowest:\n");
+        for (int i = 0; i < Math.min(5, slowest.size()); ++i) {
+            Result result = slowest.get(i);
+            System.out.printf("  %8.2f ms  %6d sprites  %s\n", toMs(result.timeNs), result.sprites, result.path);
+        }
+
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
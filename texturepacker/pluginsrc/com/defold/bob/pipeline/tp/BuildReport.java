@@ -0,0 +1,293 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynamo.bob.Project;
+import com.dynamo.bob.textureset.TextureSetLayout;
+
+// Optional timing and memory report of the atlas builds, enabled with "texturepacker.build_report" in game.project.
+// Each .tpatlas gets a json file in <build>/_texturepacker_report/ (e.g. main/hero.tpatlas.json), and a summary of all of them is written when bob exits.
+// The allocated bytes are the ones allocated by the build thread, so the work done by the page thread pool is not included.
+public class BuildReport {
+
+    static final String FOLDER_NAME = "_texturepacker_report";
+    static final String SUMMARY_NAME = "summary.json";
+    static final int VERSION = 1;
+
+    private static Logger logger = Logger.getLogger(BuildReport.class.getName());
+
+    static private BuildReport shared;
+
+    private final File directory;
+    private final List<Entry> atlases = new ArrayList<>();
+
+    public BuildReport(File directory) {
+        this.directory = directory;
+    }
+
+    static public synchronized void init(Project project, boolean enabled) {
+        shared = enabled ? new BuildReport(new File(PageCache.getBuildFolder(project), FOLDER_NAME)) : null;
+    }
+
+    // Writes the summary of all the atlases built since init()
+    static public synchronized void exit() {
+        if (shared != null) {
+            try {
+                shared.writeSummary();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write the texturepacker build report", e);
+            }
+        }
+        shared = null;
+    }
+
+    // Returns a report that does nothing if the reports are disabled
+    static public synchronized Entry begin(String path) {
+        return new Entry(shared, path);
+    }
+
+    public static class Phase {
+        public String   name;
+        public long     timeNs;
+        public long     allocatedBytes = -1; // -1 if not supported by the JVM
+        public long     inputBytes;
+        public long     outputBytes;
+    }
+
+    // The report of one .tpatlas build. Phases are sequential: each begin() ends the previous phase.
+    public static class Entry {
+        private final BuildReport report;
+        public final String path;
+        public final List<Phase> phases = new ArrayList<>();
+        public final Map<String, Long> counts = new LinkedHashMap<>();
+        public long timeNs;
+
+        private Phase current;
+        private long phaseStartTime;
+        private long phaseStartAllocated;
+        private long startTime;
+
+        Entry(BuildReport report, String path) {
+            this.report = report;
+            this.path = path;
+            if (report != null) {
+                startTime = System.nanoTime();
+            }
+        }
+
+        public boolean isEnabled() {
+            return report != null;
+        }
+
+        public void begin(String name) {
+            if (report == null)
+                return;
+            end();
+            current = new Phase();
+            current.name = name;
+            phaseStartAllocated = getAllocatedBytes();
+            phaseStartTime = System.nanoTime();
+        }
+
+        // Sets the sizes of the data read and written by the current phase
+        public void setBytes(long inputBytes, long outputBytes) {
+            if (current == null)
+                return;
+            current.inputBytes = inputBytes;
+            current.outputBytes = outputBytes;
+        }
+
+        public void setCount(String name, long count) {
+            if (report == null)
+                return;
+            counts.put(name, count);
+        }
+
+        public void end() {
+            if (current == null)
+                return;
+            current.timeNs = System.nanoTime() - phaseStartTime;
+            long allocated = getAllocatedBytes();
+            if (allocated >= 0 && phaseStartAllocated >= 0) {
+                current.allocatedBytes = allocated - phaseStartAllocated;
+            }
+            phases.add(current);
+            current = null;
+        }
+
+        public void setLayoutCounts(List<TextureSetLayout.Page> pages) {
+            if (report == null)
+                return;
+            long sprites = 0;
+            long vertices = 0;
+            long indices = 0;
+            for (TextureSetLayout.Page page : pages) {
+                sprites += page.images.size();
+                for (TextureSetLayout.SourceImage image : page.images) {
+                    vertices += image.vertices.size();
+                    indices += image.indices.size();
+                }
+            }
+            setCount("pages", pages.size());
+            setCount("sprites", sprites);
+            setCount("vertices", vertices);
+            setCount("indices", indices);
+        }
+
+        // Ends the last phase, and writes the report
+        public void finish() {
+            if (report == null)
+                return;
+            end();
+            timeNs = System.nanoTime() - startTime;
+            try {
+                report.add(this);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, String.format("Failed to write the texturepacker build report for '%s'", path), e);
+            }
+        }
+
+        void toJson(StringBuilder sb, String indent) {
+            sb.append(indent).append("{\n");
+            sb.append(indent).append("  \"path\": ").append(quote(path)).append(",\n");
+            sb.append(indent).append("  \"time_ms\": ").append(toMs(timeNs)).append(",\n");
+            sb.append(indent).append("  \"counts\": {");
+            String separator = "";
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                sb.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue());
+                separator = ", ";
+            }
+            sb.append("},\n");
+            sb.append(indent).append("  \"phases\": [\n");
+            for (int i = 0; i < phases.size(); ++i) {
+                Phase phase = phases.get(i);
+                sb.append(indent).append("    {");
+                sb.append("\"name\": ").append(quote(phase.name));
+                sb.append(", \"time_ms\": ").append(toMs(phase.timeNs));
+                sb.append(", \"allocated_bytes\": ").append(phase.allocatedBytes);
+                sb.append(", \"input_bytes\": ").append(phase.inputBytes);
+                sb.append(", \"output_bytes\": ").append(phase.outputBytes);
+                sb.append(i + 1 < phases.size() ? "},\n" : "}\n");
+            }
+            sb.append(indent).append("  ]\n");
+            sb.append(indent).append("}");
+        }
+    }
+
+    private void add(Entry atlas) throws IOException {
+        synchronized (this) {
+            atlases.add(atlas);
+        }
+        StringBuilder sb = new StringBuilder();
+        atlas.toJson(sb, "");
+        sb.append("\n");
+        // The same directory structure as the project, so that different atlases never share a file
+        write(atlas.path.replaceFirst("^/+", "") + ".json", sb.toString());
+    }
+
+    private synchronized void writeSummary() throws IOException {
+        // The totals of each phase, over all atlases
+        Map<String, Phase> totals = new LinkedHashMap<>();
+        long totalTime = 0;
+        for (Entry atlas : atlases) {
+            totalTime += atlas.timeNs;
+            for (Phase phase : atlas.phases) {
+                Phase total = totals.get(phase.name);
+                if (total == null) {
+                    total = new Phase();
+                    total.name = phase.name;
+                    total.allocatedBytes = 0;
+                    totals.put(phase.name, total);
+                }
+                total.timeNs += phase.timeNs;
+                total.allocatedBytes = (total.allocatedBytes < 0 || phase.allocatedBytes < 0) ? -1 : total.allocatedBytes + phase.allocatedBytes;
+                total.inputBytes += phase.inputBytes;
+                total.outputBytes += phase.outputBytes;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"version\": ").append(VERSION).append(",\n");
+        sb.append("  \"atlas_count\": ").append(atlases.size()).append(",\n");
+        sb.append("  \"time_ms\": ").append(toMs(totalTime)).append(",\n");
+        sb.append("  \"phases\": [\n");
+        int i = 0;
+        for (Phase total : totals.values()) {
+            sb.append("    {");
+            sb.append("\"name\": ").append(quote(total.name));
+            sb.append(", \"time_ms\": ").append(toMs(total.timeNs));
+            sb.append(", \"allocated_bytes\": ").append(total.allocatedBytes);
+            sb.append(", \"input_bytes\": ").append(total.inputBytes);
+            sb.append(", \"output_bytes\": ").append(total.outputBytes);
+            sb.append(++i < totals.size() ? "},\n" : "}\n");
+        }
+        sb.append("  ],\n");
+        sb.append("  \"atlases\": [\n");
+        for (int a = 0; a < atlases.size(); ++a) {
+            atlases.get(a).toJson(sb, "    ");
+            sb.append(a + 1 < atlases.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        write(SUMMARY_NAME, sb.toString());
+    }
+
+    private void write(String name, String text) throws IOException {
+        File file = new File(directory, name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String toMs(long ns) {
+        return String.format(Locale.ROOT, "%.3f", ns / 1000000.0);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':   sb.append("\\\""); break;
+                case '\\':  sb.append("\\\\"); break;
+                case '\n':  sb.append("\\n"); break;
+                case '\r':  sb.append("\\r"); break;
+                case '\t':  sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    // Returns -1 if the JVM doesn't support measuring the allocations of a thread
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
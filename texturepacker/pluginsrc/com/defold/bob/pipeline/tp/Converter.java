@@ -0,0 +1,52 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.dynamo.texturepacker.proto.Info;
+
+// Converts .tpinfo files between the text and binary encodings.
+// The Loader detects the encoding from the content, so the file extension stays the same.
+// The binary files are for bob only, since the editor can only open text .tpinfo files.
+public class Converter {
+
+    // ./utils/convert_tpinfo.sh [--text] input.tpinfo output.tpinfo
+    public static void main(String[] args) throws IOException {
+        boolean binary = true;
+        int argIndex = 0;
+        if (args.length > 0 && args[0].equals("--text")) {
+            binary = false;
+            argIndex++;
+        }
+
+        if (args.length - argIndex != 2) {
+            System.err.printf("Usage: ./utils/convert_tpinfo.sh [--text] input.tpinfo output.tpinfo\n");
+            System.exit(1);
+        }
+
+        File input = new File(args[argIndex]);
+        File output = new File(args[argIndex + 1]);
+        if (!input.exists())
+            throw new IOException(String.format("File does not exist: %s", input));
+
+        // The editor can only open text .tpinfo files, so we never replace one with a binary file
+        if (binary && output.exists() && !Loader.isBinary(Files.readAllBytes(output.toPath())))
+            throw new IOException(String.format("Refusing to overwrite the text file %s with a binary file, since the editor can only open text .tpinfo files", output));
+
+        long timeStart = System.currentTimeMillis();
+
+        Info.Atlas atlas = Loader.load(input);
+        if (atlas == null)
+            throw new IOException(String.format("Failed to load: %s", input));
+
+        Loader.save(atlas, output, binary);
+
+        long timeEnd = System.currentTimeMillis();
+
+        System.out.printf("Wrote %s (%s, %d bytes) in %d ms\n", output, binary ? "binary" : "text", output.length(), (timeEnd - timeStart));
+    }
+}
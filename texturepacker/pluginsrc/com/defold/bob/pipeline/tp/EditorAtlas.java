@@ -0,0 +1,101 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynamo.bob.pipeline.tp.Atlas.Pair;
+import com.dynamo.bob.textureset.TextureSetGenerator;
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.gamesys.proto.TextureSetProto.TextureSet;
+import com.dynamo.texturepacker.proto.Info;
+
+// Everything the editor needs from an atlas, created with a single call.
+// The editor looks up the entry points once, and reads the public fields,
+// instead of making one reflective call per page and image.
+public class EditorAtlas {
+    private static Logger logger = Logger.getLogger(EditorAtlas.class.getName());
+
+    public List<String>                             frameIds;       // The unique frame names (renamed)
+    public List<String>                             pageImageNames; // List of base filenames: basic-0.png, ...
+    public List<TextureSetLayout.Page>              pages;
+    public TextureSet                               textureSet;     // null if created from a .tpinfo only
+    public List<TextureSetGenerator.UVTransform>    uvTransforms;   // null if created from a .tpinfo only
+    public Info.Atlas                               info;           // The parsed .tpinfo, only set by createFromInfoFile()
+    public int[][]                                  cropSizes;      // The size of each cropped page, or null if the pages aren't cropped. The pages above are uncropped
+
+    // The triangle lists of each page, see Atlas.getPageTriangles()
+    // The triangles of image i of page p are in triangles[p], in the range [triangleOffsets[p][i], triangleOffsets[p][i+1])
+    public float[][]                                triangles;
+    public int[][]                                  triangleOffsets;
+
+    private static void createTriangles(EditorAtlas out) {
+        out.triangleOffsets = new int[out.pages.size()][];
+        out.triangles = Atlas.getAtlasTriangles(out.pages, out.triangleOffsets);
+    }
+
+    // Used from editor
+    // The layout of a .tpinfo file, without any animations
+    static public EditorAtlas createFromInfo(String path, byte[] data_tpinfo) throws IOException {
+        return createFromPages(AtlasBuilder.createPages(Loader.load(data_tpinfo)));
+    }
+
+    static private EditorAtlas createFromPages(List<TextureSetLayout.Page> pages) {
+        EditorAtlas out = new EditorAtlas();
+        out.pages = pages;
+        out.frameIds = AtlasBuilder.getFrameIds(out.pages);
+        out.pageImageNames = new ArrayList<>();
+        for (TextureSetLayout.Page page : out.pages) {
+            out.pageImageNames.add(page.name);
+        }
+        createTriangles(out);
+        return out;
+    }
+
+    // Used from editor
+    // Same as createFromInfo(), but reads the .tpinfo file itself. If the file size and modification time match
+    // the binary sidecar in the cache directory, the parsed .tpinfo and the pages are read from the sidecar,
+    // without reading the .tpinfo. Otherwise the .tpinfo is parsed, and the sidecar is (re)written.
+    static public EditorAtlas createFromInfoFile(String path, File tpinfoFile, File cacheDir) throws IOException {
+        String key = LayoutSidecar.getKey(tpinfoFile);
+        File file = LayoutSidecar.getFile(cacheDir, path);
+        LayoutSidecar.Entry entry = LayoutSidecar.load(file, key);
+        if (entry == null) {
+            entry = new LayoutSidecar.Entry();
+            entry.info = Loader.load(Files.readAllBytes(tpinfoFile.toPath()));
+            entry.pages = AtlasBuilder.createPages(entry.info);
+            try {
+                LayoutSidecar.save(file, key, entry.info, entry.pages);
+            } catch (IOException e) {
+                // E.g. the old file is still mapped on Windows. We'll try again next time
+                logger.log(Level.WARNING, String.format("Failed to write the layout cache '%s'", file), e);
+            }
+        }
+        EditorAtlas out = createFromPages(entry.pages);
+        out.info = entry.info;
+        return out;
+    }
+
+    // The full atlas, including the texture set. All image references are expected to use the original names.
+    // The editor uses PreparedLayout.apply() instead, which reuses the geometry between edits.
+    static public EditorAtlas create(String path, byte[] data_tpatlas, byte[] data_tpinfo, String texture) throws IOException {
+        Atlas atlas = Atlas.createFullAtlas(path, data_tpatlas, data_tpinfo);
+        Pair<TextureSet, List<TextureSetGenerator.UVTransform>> result = Atlas.createTextureSetResult(path, atlas, texture);
+
+        EditorAtlas out = new EditorAtlas();
+        out.frameIds = atlas.frameIds;
+        out.pageImageNames = atlas.pageImageNames;
+        out.pages = atlas.pages;
+        out.textureSet = result.left;
+        out.uvTransforms = result.right;
+        createTriangles(out);
+        return out;
+    }
+}
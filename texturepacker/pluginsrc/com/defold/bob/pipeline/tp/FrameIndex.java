@@ -0,0 +1,55 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Maps each (renamed) frame id to its index in the ordered list of single frames.
+// Built once per atlas, and shared by the animation iterator and the validation.
+public class FrameIndex {
+    private final List<String> frameIds;
+    private final Map<String, Integer> indices;
+    private final Set<String> duplicates = new LinkedHashSet<>();
+
+    public FrameIndex(List<String> frameIds) {
+        this.frameIds = frameIds;
+        this.indices = new HashMap<>(frameIds.size() * 2);
+        int index = 0;
+        for (String id : frameIds) {
+            // Keep the first occurrence, to match List.indexOf()
+            if (indices.putIfAbsent(id, index) != null) {
+                duplicates.add(id);
+            }
+            ++index;
+        }
+    }
+
+    public List<String> getFrameIds() {
+        return frameIds;
+    }
+
+    // Returns -1 if the id doesn't exist
+    public int indexOf(String id) {
+        Integer index = indices.get(id);
+        return index == null ? -1 : index;
+    }
+
+    public boolean contains(String id) {
+        return indices.containsKey(id);
+    }
+
+    public int size() {
+        return frameIds.size();
+    }
+
+    // The ids occurring more than once, in the order they were found
+    public List<String> getDuplicates() {
+        return new ArrayList<>(duplicates);
+    }
+}
@@ -0,0 +1,146 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.dynamo.bob.fs.IResource;
+
+// The size and pixel format of a PNG or JPEG image, read from the file header without decoding the pixels.
+// AtlasBuilder.create() probes the page images, and passes their sizes on to the texture task in its input (see AtlasTextureBuilder).
+public class ImageHeader {
+
+    public enum Format {
+        PNG,
+        JPEG
+    }
+
+    public Format   format;
+    public int      width;
+    public int      height;
+    public int      channels;   // 1 (gray), 2 (gray + alpha), 3 (rgb or palette), 4 (rgba or cmyk)
+    public int      bitDepth;   // Bits per channel
+    public boolean  palette;
+
+    static final int PROBE_LENGTH = 64 * 1024; // The most read from the file by probe(), unless the header comes later
+
+    static private final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    static private int readU16(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    static private int readU32(byte[] data, int offset) {
+        return (readU16(data, offset) << 16) | readU16(data, offset + 2);
+    }
+
+    static private ImageHeader readPng(byte[] data) {
+        // The IHDR chunk is always first: length, type, width, height, bit depth, color type
+        if (data.length < 8 + 8 + 13)
+            return null;
+        if (data[12] != 'I' || data[13] != 'H' || data[14] != 'D' || data[15] != 'R')
+            return null;
+        ImageHeader header = new ImageHeader();
+        header.format = Format.PNG;
+        header.width = readU32(data, 16);
+        header.height = readU32(data, 20);
+        header.bitDepth = data[24] & 0xff;
+        int colorType = data[25] & 0xff;
+        switch (colorType) {
+            case 0: header.channels = 1; break;
+            case 2: header.channels = 3; break;
+            case 3: header.channels = 3; header.palette = true; break;
+            case 4: header.channels = 2; break;
+            case 6: header.channels = 4; break;
+            default: return null;
+        }
+        return header;
+    }
+
+    static private ImageHeader readJpeg(byte[] data) {
+        int offset = 2; // After the SOI marker
+        while (offset + 4 <= data.length) {
+            if ((data[offset] & 0xff) != 0xff)
+                return null;
+            int marker = data[offset + 1] & 0xff;
+            if (marker == 0xff) { // Fill byte
+                offset++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd9)) { // No payload
+                offset += 2;
+                continue;
+            }
+            int length = readU16(data, offset + 2);
+            // The start of frame markers, except DHT (c4), JPG (c8) and DAC (cc)
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (offset + 10 > data.length)
+                    return null;
+                ImageHeader header = new ImageHeader();
+                header.format = Format.JPEG;
+                header.bitDepth = data[offset + 4] & 0xff;
+                header.height = readU16(data, offset + 5);
+                header.width = readU16(data, offset + 7);
+                header.channels = data[offset + 9] & 0xff;
+                return header;
+            }
+            if (marker == 0xda) // Start of scan, the frame header should've come before it
+                return null;
+            offset += 2 + length;
+        }
+        return null;
+    }
+
+    // Returns null if the data isn't a PNG or JPEG image, or if the header is incomplete
+    static public ImageHeader read(byte[] data) {
+        if (data == null)
+            return null;
+        if (data.length >= PNG_SIGNATURE.length) {
+            boolean isPng = true;
+            for (int i = 0; i < PNG_SIGNATURE.length; ++i) {
+                if (data[i] != PNG_SIGNATURE[i]) {
+                    isPng = false;
+                    break;
+                }
+            }
+            if (isPng)
+                return readPng(data);
+        }
+        if (data.length >= 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8)
+            return readJpeg(data);
+        return null;
+    }
+
+    // Reads the header from the start of the file, instead of getting the whole content of the resource.
+    // Returns null if the format isn't known
+    static public ImageHeader probe(IResource resource) throws IOException {
+        File file = new File(resource.getAbsPath());
+        if (!file.isFile())
+            return read(resource.getContent()); // E.g. a resource in a library archive
+
+        byte[] prefix;
+        try (InputStream in = new FileInputStream(file)) {
+            prefix = in.readNBytes(PROBE_LENGTH);
+        }
+        ImageHeader header = read(prefix);
+        // The frame header of a JPEG may come after a lot of metadata
+        if (header == null && prefix.length == PROBE_LENGTH)
+            header = read(resource.getContent());
+        return header;
+    }
+
+    // The size of the decoded pixels, as ImageIO stores them
+    public long getDecodedSize() {
+        long bytesPerPixel = palette ? 1 : Math.max(1, (channels * bitDepth + 7) / 8);
+        return (long)width * (long)height * bytesPerPixel;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %dx%d, %d channels, %d bits%s", format, width, height, channels, bitDepth, palette ? " (palette)" : "");
+    }
+}
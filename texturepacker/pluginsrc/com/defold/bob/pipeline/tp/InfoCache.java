@@ -0,0 +1,264 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Info;
+
+// A process wide cache of parsed .tpinfo files, keyed by the hash of the file content.
+// It lets AtlasBuilder.create() and build() share the parsed result, as well as all
+// the .tpatlas files referring to the same .tpinfo file.
+// Concurrent requests for the same content are only parsed once.
+// The budget counts the estimated memory of each entry: the content, the parsed pages, and the Info.Atlas if it was requested.
+public class InfoCache {
+
+    static final long DEFAULT_MAX_SIZE = 256 * 1024 * 1024; // Total estimated size of the cached entries
+
+    static private final InfoCache shared = new InfoCache(DEFAULT_MAX_SIZE);
+
+    public static class Entry {
+        public final String key;
+        private final InfoCache cache;
+        private final byte[] content;
+        private final List<TextureSetLayout.Page> pages;
+        private final long pagesSize;
+        private Info.Atlas atlas;
+
+        // The pages are read directly from the content, without creating the Info.Atlas message.
+        // The path is only used in the error messages
+        Entry(InfoCache cache, String key, String path, byte[] content) throws IOException {
+            this.key = key;
+            this.cache = cache;
+            this.content = content;
+            List<TextureSetLayout.Page> pages = InfoReader.readPages(path, content);
+            this.pagesSize = estimateSize(pages);
+            this.pages = unmodifiablePages(pages);
+        }
+
+        // The pages are shared between all users of the entry. The lists can't be modified,
+        // and neither may the pages and images themselves (their fields are public in bob)
+        public List<TextureSetLayout.Page> getPages() {
+            return pages;
+        }
+
+        // Only parsed if needed. The message is immutable, so it can be shared
+        public synchronized Info.Atlas getAtlas() throws IOException {
+            if (atlas == null) {
+                atlas = Loader.load(content);
+                cache.grow(this, estimateSize(atlas));
+            }
+            return atlas;
+        }
+
+        long getSize() {
+            return content.length + pagesSize;
+        }
+    }
+
+    // Rough sizes of the objects created by the InfoReader (64 bit jvm with compressed references)
+    static final int OBJECT_SIZE = 16;      // Header
+    static final int POINT_SIZE = 24;       // Point, Size
+    static final int RECTANGLE_SIZE = 32;
+    static final int IMAGE_SIZE = 48;       // SourceImage, without the objects it refers to
+    static final int PAGE_SIZE = 32;
+    static final int LIST_SIZE = 40;        // ArrayList and its array, without the elements
+    static final int REFERENCE_SIZE = 4;
+    static final int INTEGER_SIZE = 16;
+    static final int VIEW_SIZE = 24;        // A PageGeometry view, without the arrays
+
+    static private long estimateSize(String s) {
+        return s == null ? 0 : OBJECT_SIZE * 2 + s.length();
+    }
+
+    // The estimated memory used by the pages, which is usually a few times the size of the text they were read from
+    static long estimateSize(List<TextureSetLayout.Page> pages) {
+        long size = LIST_SIZE + (long)pages.size() * REFERENCE_SIZE;
+        for (TextureSetLayout.Page page : pages) {
+            size += PAGE_SIZE + POINT_SIZE + estimateSize(page.name);
+            size += LIST_SIZE + (long)page.images.size() * REFERENCE_SIZE;
+            for (TextureSetLayout.SourceImage image : page.images) {
+                size += IMAGE_SIZE + RECTANGLE_SIZE + estimateSize(image.name);
+                if (image.pivot != null)
+                    size += POINT_SIZE;
+                // The views of a PageGeometry only refer to its arrays (see PageGeometry)
+                if (image.vertices instanceof PageGeometry.Vertices)
+                    size += VIEW_SIZE + (long)image.vertices.size() * 2 * Float.BYTES;
+                else if (image.vertices != null)
+                    size += LIST_SIZE + (long)image.vertices.size() * (REFERENCE_SIZE + POINT_SIZE);
+                if (image.indices instanceof PageGeometry.Indices)
+                    size += VIEW_SIZE + (long)image.indices.size() * Integer.BYTES;
+                else if (image.indices != null)
+                    size += LIST_SIZE + (long)image.indices.size() * (REFERENCE_SIZE + INTEGER_SIZE);
+            }
+        }
+        return size;
+    }
+
+    // A parsed message takes roughly four times its encoded size (an object per message, and boxed lists)
+    static long estimateSize(Info.Atlas atlas) {
+        return 4L * atlas.getSerializedSize();
+    }
+
+    // Wraps all the lists of the pages, so that a user of the cache can't change them for everyone else.
+    // The views of a PageGeometry are already read only, and are kept as they are
+    static private List<TextureSetLayout.Page> unmodifiablePages(List<TextureSetLayout.Page> pages) {
+        List<TextureSetLayout.Page> out = new ArrayList<>(pages.size());
+        for (TextureSetLayout.Page page : pages) {
+            for (TextureSetLayout.SourceImage image : page.images) {
+                if (image.vertices != null && !(image.vertices instanceof PageGeometry.Vertices))
+                    image.vertices = Collections.unmodifiableList(image.vertices);
+                if (image.indices != null && !(image.indices instanceof PageGeometry.Indices))
+                    image.indices = Collections.unmodifiableList(image.indices);
+            }
+            page.images = Collections.unmodifiableList(page.images);
+            out.add(page);
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    private static class Slot {
+        final FutureTask<Entry> task;
+        long size;      // The content size until the entry is parsed, then the estimated size of the entry
+        Entry entry;    // Set once the entry is parsed
+
+        Slot(FutureTask<Entry> task, long size) {
+            this.task = task;
+            this.size = size;
+        }
+    }
+
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long maxSize;
+    private long totalSize;
+
+    public InfoCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    static public InfoCache shared() {
+        return shared;
+    }
+
+    static public String hash(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Entry get(byte[] content) throws IOException {
+        return get(null, content);
+    }
+
+    // The path of the .tpinfo file is put in the parse errors. The entries are still keyed by the content only
+    public Entry get(String path, byte[] content) throws IOException {
+        String key = hash(content);
+
+        Slot slot;
+        boolean owner = false;
+        synchronized (this) {
+            slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot(new FutureTask<>(() -> new Entry(this, key, path, content)), content.length);
+                slots.put(key, slot);
+                totalSize += slot.size;
+                owner = true;
+                evict(key);
+            }
+        }
+
+        // The first requester parses the file, any other requesters wait for the result
+        if (owner) {
+            slot.task.run();
+        }
+
+        try {
+            Entry entry = slot.task.get();
+            if (owner) {
+                setEntry(key, slot, entry);
+            }
+            return entry;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the .tpinfo to be parsed", e);
+        } catch (ExecutionException e) {
+            // Don't keep the failed result around
+            synchronized (this) {
+                if (slots.remove(key, slot)) {
+                    totalSize -= slot.size;
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Counts the estimated size of a parsed entry, unless it was already evicted
+    private synchronized void setEntry(String key, Slot slot, Entry entry) {
+        if (slots.get(key) != slot)
+            return;
+        slot.entry = entry;
+        resize(key, slot, entry.getSize());
+    }
+
+    // Adds the size of the Info.Atlas of an entry, unless it was already evicted
+    private synchronized void grow(Entry entry, long size) {
+        Slot slot = slots.get(entry.key);
+        if (slot == null || slot.entry != entry)
+            return;
+        resize(entry.key, slot, slot.size + size);
+    }
+
+    private void resize(String key, Slot slot, long size) {
+        totalSize += size - slot.size;
+        slot.size = size;
+        evict(key);
+    }
+
+    // Removes the least recently used entries until we're within budget.
+    // Entries still being parsed are left alone, as is the one we just added.
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Slot>> it = slots.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Slot> e = it.next();
+            Slot slot = e.getValue();
+            if (e.getKey().equals(keep) || !slot.task.isDone())
+                continue;
+            it.remove();
+            totalSize -= slot.size;
+        }
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict(null);
+    }
+
+    public synchronized void clear() {
+        slots.clear();
+        totalSize = 0;
+    }
+}
@@ -0,0 +1,148 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Info;
+
+// The differences between two versions of a .tpinfo file, page by page and sprite by sprite.
+// Used by the AtlasWatcher, to list what changed in each reloaded .tpinfo.
+// The pages are matched by index. A sprite that moved to another page is removed from one page and added to the other.
+// A sprite is changed if its rect, rotation, pivot or mesh changed.
+public class InfoDiff {
+
+    public static class PageDiff {
+        public int          index;
+        public String       name;           // The page image name (the old one if the page was removed)
+        public boolean      added;
+        public boolean      removed;
+        public boolean      nameChanged;
+        public boolean      sizeChanged;
+        public List<String> spritesAdded = new ArrayList<>();
+        public List<String> spritesRemoved = new ArrayList<>();
+        public List<String> spritesChanged = new ArrayList<>();
+
+        public boolean isUnchanged() {
+            return !added && !removed && !nameChanged && !sizeChanged
+                    && spritesAdded.isEmpty() && spritesRemoved.isEmpty() && spritesChanged.isEmpty();
+        }
+    }
+
+    public List<PageDiff> pages = new ArrayList<>(); // One per page in either version
+
+    public boolean isUnchanged() {
+        for (PageDiff page : pages) {
+            if (!page.isUnchanged())
+                return false;
+        }
+        return true;
+    }
+
+    // The indices of the pages that changed in any way
+    public List<Integer> getChangedPages() {
+        List<Integer> out = new ArrayList<>();
+        for (PageDiff page : pages) {
+            if (!page.isUnchanged()) {
+                out.add(page.index);
+            }
+        }
+        return out;
+    }
+
+    // The names of all the added, removed or changed sprites (including the ones that moved to another page)
+    public Set<String> getAffectedSprites() {
+        Set<String> out = new LinkedHashSet<>();
+        for (PageDiff page : pages) {
+            out.addAll(page.spritesAdded);
+            out.addAll(page.spritesRemoved);
+            out.addAll(page.spritesChanged);
+        }
+        return out;
+    }
+
+    static private PageDiff diffPage(int index, TextureSetLayout.Page previous, TextureSetLayout.Page current) {
+        PageDiff diff = new PageDiff();
+        diff.index = index;
+        diff.name = current != null ? current.name : previous.name;
+        diff.added = previous == null;
+        diff.removed = current == null;
+
+        Map<String, String> previousSprites = previous != null ? PageHashes.create(previous).spriteHashes : Collections.emptyMap();
+        Map<String, String> currentSprites = current != null ? PageHashes.create(current).spriteHashes : Collections.emptyMap();
+        if (previous != null && current != null) {
+            diff.nameChanged = !previous.name.equals(current.name);
+            diff.sizeChanged = previous.size.width != current.size.width || previous.size.height != current.size.height;
+        }
+
+        // In page order, so that the lists are stable
+        if (current != null) {
+            for (TextureSetLayout.SourceImage image : current.images) {
+                String previousHash = previousSprites.get(image.name);
+                if (previousHash == null) {
+                    diff.spritesAdded.add(image.name);
+                } else if (!previousHash.equals(currentSprites.get(image.name))) {
+                    diff.spritesChanged.add(image.name);
+                }
+            }
+        }
+        if (previous != null) {
+            for (TextureSetLayout.SourceImage image : previous.images) {
+                if (!currentSprites.containsKey(image.name)) {
+                    diff.spritesRemoved.add(image.name);
+                }
+            }
+        }
+        return diff;
+    }
+
+    static public InfoDiff diff(List<TextureSetLayout.Page> previous, List<TextureSetLayout.Page> current) {
+        InfoDiff diff = new InfoDiff();
+        int count = Math.max(previous.size(), current.size());
+        for (int i = 0; i < count; ++i) {
+            diff.pages.add(diffPage(i, i < previous.size() ? previous.get(i) : null,
+                                       i < current.size() ? current.get(i) : null));
+        }
+        return diff;
+    }
+
+    static private List<TextureSetLayout.Page> createPages(Info.Atlas atlas) {
+        List<TextureSetLayout.Page> pages = new ArrayList<>();
+        for (int i = 0; i < atlas.getPagesCount(); ++i) {
+            pages.add(Atlas.createLayoutPage(i, atlas.getPages(i)));
+        }
+        return pages;
+    }
+
+    static public InfoDiff diff(Info.Atlas previous, Info.Atlas current) {
+        return diff(createPages(previous), createPages(current));
+    }
+
+    // Used from the AtlasWatcher
+    // The content of the .tpinfo files, text or binary. The pages are shared with the build through the InfoCache
+    static public InfoDiff diff(byte[] previous, byte[] current) throws IOException {
+        return diff(InfoCache.shared().get(previous).getPages(), InfoCache.shared().get(current).getPages());
+    }
+
+    // A short summary for the logs
+    @Override
+    public String toString() {
+        int added = 0;
+        int removed = 0;
+        int changed = 0;
+        for (PageDiff page : pages) {
+            added += page.spritesAdded.size();
+            removed += page.spritesRemoved.size();
+            changed += page.spritesChanged.size();
+        }
+        return String.format("changed pages %s. Sprites: %d changed, %d added, %d removed", getChangedPages(), changed, added, removed);
+    }
+}
@@ -0,0 +1,524 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Info;
+
+// A streaming reader for the .tpinfo text format.
+// It tokenizes the input incrementally, and adds the sprites directly to the flat page geometry (see PageGeometry),
+// one sprite at a time, without creating the intermediate Info.Atlas message.
+// Binary encoded files are loaded with the Loader instead.
+// It accepts the same input as TextFormat.merge() followed by build() (see Loader): unknown fields
+// and missing required fields are errors, and messages may be delimited by either {} or <>.
+public class InfoReader {
+
+    public interface Listener {
+        // Called for each image of a page, when the page has been read, before onPage()
+        default void onImage(TextureSetLayout.Page page, TextureSetLayout.SourceImage image) throws IOException {}
+        // Called when a page (and all its images) has been read
+        default void onPage(TextureSetLayout.Page page) throws IOException {}
+    }
+
+    static public List<TextureSetLayout.Page> readPages(byte[] data) throws IOException {
+        return readPages(null, data);
+    }
+
+    // The path (may be null) is only used in the error messages
+    static public List<TextureSetLayout.Page> readPages(String path, byte[] data) throws IOException {
+        if (Loader.isBinary(data)) {
+            try {
+                return AtlasBuilder.createPages(Loader.load(data));
+            } catch (IOException | RuntimeException e) {
+                throw new IOException(path != null ? String.format("%s: %s", path, e.getMessage()) : e.getMessage(), e);
+            }
+        }
+        return readPages(path, new ByteArrayInputStream(data));
+    }
+
+    static public List<TextureSetLayout.Page> readPages(String path, InputStream in) throws IOException {
+        List<TextureSetLayout.Page> pages = new ArrayList<>();
+        readPages(path, in, new Listener() {
+            @Override
+            public void onPage(TextureSetLayout.Page page) {
+                pages.add(page);
+            }
+        });
+        return pages;
+    }
+
+    static public void readPages(String path, InputStream in, Listener listener) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(Loader.DETECT_LENGTH);
+        byte[] head = buffered.readNBytes(Loader.DETECT_LENGTH);
+        buffered.reset();
+
+        if (Loader.isBinary(head)) {
+            int index = 0;
+            for (Info.Page srcPage : Loader.load(buffered.readAllBytes()).getPagesList()) {
+                TextureSetLayout.Page page = AtlasBuilder.createPage(index++, srcPage);
+                for (TextureSetLayout.SourceImage image : page.images) {
+                    listener.onImage(page, image);
+                }
+                listener.onPage(page);
+            }
+            return;
+        }
+
+        new InfoReader(path, new InputStreamReader(buffered, StandardCharsets.UTF_8), listener).readAtlas();
+    }
+
+    // *************************************************************************
+    // Tokenizer
+
+    private static final int EOF = -1;
+
+    private final String path;
+    private final Reader reader;
+    private final Listener listener;
+    private int peeked = -2; // -2 means nothing peeked
+    private int line = 1;
+    private int column = 0;
+    private final StringBuilder token = new StringBuilder();
+    private int pageIndex = 0;
+
+    private InfoReader(String path, Reader reader, Listener listener) {
+        this.path = path;
+        this.reader = reader;
+        this.listener = listener;
+    }
+
+    private IOException error(String message) {
+        if (path != null)
+            return new IOException(String.format("%s:%d:%d: %s", path, line, column, message));
+        return new IOException(String.format("%d:%d: %s", line, column, message));
+    }
+
+    private IOException unknownField(String type, String field) {
+        return error(String.format("Message type \"dmGameSystemDDF.%s\" has no field named \"%s\".", type, field));
+    }
+
+    // The required fields are tracked as bits in a mask, in the order of the names
+    private void checkRequired(int found, String context, String... names) throws IOException {
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < names.length; ++i) {
+            if ((found & (1 << i)) == 0) {
+                missing.add(context + "." + names[i]);
+            }
+        }
+        if (!missing.isEmpty())
+            throw error(String.format("Message missing required fields: %s", String.join(", ", missing)));
+    }
+
+    private int peekChar() throws IOException {
+        if (peeked == -2) {
+            peeked = reader.read();
+        }
+        return peeked;
+    }
+
+    private int readChar() throws IOException {
+        int c = peekChar();
+        peeked = -2;
+        if (c == '\n') {
+            line++;
+            column = 0;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    // Skips whitespace and comments, and returns the next character (without consuming it)
+    private int skip() throws IOException {
+        while (true) {
+            int c = peekChar();
+            if (c == '#') {
+                while (c != '\n' && c != EOF) {
+                    readChar();
+                    c = peekChar();
+                }
+            } else if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                readChar();
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = skip();
+        if (c != expected) {
+            throw error(String.format("Expected '%c', found '%s'", expected, c == EOF ? "end of file" : Character.toString((char)c)));
+        }
+        readChar();
+    }
+
+    // Consumes the character if it's next
+    private boolean tryConsume(char expected) throws IOException {
+        if (skip() == expected) {
+            readChar();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isIdentifierChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // Returns null at the end of the file
+    private String readIdentifier() throws IOException {
+        int c = skip();
+        if (c == EOF)
+            return null;
+        if (!isIdentifierChar(c))
+            throw error(String.format("Expected a field name, found '%c'", (char)c));
+        token.setLength(0);
+        while (isIdentifierChar(peekChar())) {
+            token.append((char)readChar());
+        }
+        return token.toString();
+    }
+
+    private String readScalarToken() throws IOException {
+        int c = skip();
+        token.setLength(0);
+        while (c != EOF && (isIdentifierChar(c) || c == '-' || c == '+' || c == '.')) {
+            token.append((char)readChar());
+            c = peekChar();
+        }
+        if (token.length() == 0)
+            throw error("Expected a value");
+        return token.toString();
+    }
+
+    private float readFloat() throws IOException {
+        String s = readScalarToken();
+        try {
+            if (s.endsWith("f") || s.endsWith("F"))
+                s = s.substring(0, s.length() - 1);
+            return Float.parseFloat(s);
+        } catch (NumberFormatException e) {
+            if (s.equalsIgnoreCase("inf") || s.equalsIgnoreCase("infinity"))
+                return Float.POSITIVE_INFINITY;
+            if (s.equalsIgnoreCase("-inf") || s.equalsIgnoreCase("-infinity"))
+                return Float.NEGATIVE_INFINITY;
+            if (s.equalsIgnoreCase("nan"))
+                return Float.NaN;
+            throw error(String.format("Invalid float value '%s'", s));
+        }
+    }
+
+    private int readInt() throws IOException {
+        String s = readScalarToken();
+        try {
+            return Integer.decode(s);
+        } catch (NumberFormatException e) {
+            throw error(String.format("Invalid integer value '%s'", s));
+        }
+    }
+
+    private boolean readBool() throws IOException {
+        String s = readScalarToken();
+        if (s.equals("true") || s.equals("t") || s.equals("1"))
+            return true;
+        if (s.equals("false") || s.equals("f") || s.equals("0"))
+            return false;
+        throw error(String.format("Invalid boolean value '%s'", s));
+    }
+
+    // Reads a quoted string, with the same escapes as the protobuf text format.
+    // Adjacent strings are concatenated.
+    private String readString() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int quote = skip();
+        if (quote != '"' && quote != '\'')
+            throw error("Expected a string");
+
+        while (quote == '"' || quote == '\'') {
+            readChar();
+            while (true) {
+                int c = readChar();
+                if (c == EOF || c == '\n')
+                    throw error("Unterminated string");
+                if (c == quote)
+                    break;
+                if (c != '\\') {
+                    if (c < 0x80) {
+                        bytes.write(c);
+                    } else {
+                        String s = Character.isHighSurrogate((char)c) ? new String(new char[] {(char)c, (char)readChar()}) : Character.toString((char)c);
+                        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                        bytes.write(utf8, 0, utf8.length);
+                    }
+                    continue;
+                }
+                c = readChar();
+                switch (c) {
+                    case 'n':  bytes.write('\n'); break;
+                    case 't':  bytes.write('\t'); break;
+                    case 'r':  bytes.write('\r'); break;
+                    case 'a':  bytes.write(0x07); break;
+                    case 'b':  bytes.write('\b'); break;
+                    case 'f':  bytes.write('\f'); break;
+                    case 'v':  bytes.write(0x0B); break;
+                    case '\\': bytes.write('\\'); break;
+                    case '\'': bytes.write('\''); break;
+                    case '"':  bytes.write('"'); break;
+                    case '?':  bytes.write('?'); break;
+                    case 'x': {
+                        int value = 0;
+                        for (int i = 0; i < 2 && Character.digit(peekChar(), 16) >= 0; ++i) {
+                            value = value * 16 + Character.digit(readChar(), 16);
+                        }
+                        bytes.write(value);
+                        break;
+                    }
+                    default:
+                        if (c >= '0' && c <= '7') {
+                            int value = c - '0';
+                            for (int i = 0; i < 2 && peekChar() >= '0' && peekChar() <= '7'; ++i) {
+                                value = value * 8 + (readChar() - '0');
+                            }
+                            bytes.write(value);
+                        } else {
+                            throw error(String.format("Invalid escape sequence '\\%c'", (char)c));
+                        }
+                }
+            }
+            quote = skip();
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // Message fields may be written as "name {", "name: {", "name <" or "name: <".
+    // Returns the character that ends the message
+    private char beginMessage() throws IOException {
+        tryConsume(':');
+        int c = skip();
+        if (c == '{' || c == '<') {
+            readChar();
+            return c == '{' ? '}' : '>';
+        }
+        throw error(String.format("Expected '{' or '<', found '%s'", c == EOF ? "end of file" : Character.toString((char)c)));
+    }
+
+    private void beginScalar() throws IOException {
+        expect(':');
+    }
+
+    // Optional separators between fields
+    private void endField() throws IOException {
+        if (!tryConsume(',')) {
+            tryConsume(';');
+        }
+    }
+
+    // Reads either a single value ("indices: 1") or a list ("indices: [1, 2, 3]") into the sprite indices
+    private void readIndices() throws IOException {
+        beginScalar();
+        if (tryConsume('[')) {
+            if (tryConsume(']'))
+                return;
+            do {
+                sprite.addIndex(readInt());
+            } while (tryConsume(','));
+            expect(']');
+        } else {
+            sprite.addIndex(readInt());
+        }
+    }
+
+    // *************************************************************************
+    // Messages
+
+    // The fields of an Info.Sprite, reused between sprites
+    private static class SpriteFields {
+        String name = "";
+        boolean rotated;
+        boolean solid;
+        float untrimmedWidth, untrimmedHeight;
+        float offsetX, offsetY;
+        float frameX, frameY, frameWidth;
+        boolean hasPivot;
+        float pivotX, pivotY;
+        float[] vertices = new float[32]; // (x, y) per vertex
+        int vertexCount;
+        int[] indices = new int[64];
+        int indexCount;
+
+        void reset() {
+            name = "";
+            rotated = false;
+            solid = false;
+            untrimmedWidth = untrimmedHeight = 0;
+            offsetX = offsetY = 0;
+            frameX = frameY = frameWidth = 0;
+            hasPivot = false;
+            pivotX = pivotY = 0;
+            vertexCount = 0;
+            indexCount = 0;
+        }
+
+        void addVertex(float x, float y) {
+            if (vertexCount * 2 == vertices.length)
+                vertices = Arrays.copyOf(vertices, vertices.length * 2);
+            vertices[vertexCount * 2 + 0] = x;
+            vertices[vertexCount * 2 + 1] = y;
+            vertexCount++;
+        }
+
+        void addIndex(int index) {
+            if (indexCount == indices.length)
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            indices[indexCount++] = index;
+        }
+    }
+
+    private final SpriteFields sprite = new SpriteFields();
+    private final float[] values = new float[4];
+
+    // Reads a Point, Size or Rect message into 'values', in field order. All the fields are required
+    private void readValues(String type, String context, String... names) throws IOException {
+        char end = beginMessage();
+        int found = 0;
+        while (!tryConsume(end)) {
+            String field = readIdentifier();
+            if (field == null)
+                throw error("Unexpected end of file");
+            int index = -1;
+            for (int i = 0; i < names.length; ++i) {
+                if (names[i].equals(field)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                throw unknownField(type, field);
+            beginScalar();
+            values[index] = readFloat();
+            found |= 1 << index;
+            endField();
+        }
+        checkRequired(found, context, names);
+    }
+
+    // The required fields of an Info.Sprite, in the order of the bits in the mask
+    private static final String[] SPRITE_REQUIRED = {"name", "trimmed", "rotated", "is_solid", "untrimmed_size", "corner_offset", "source_rect", "frame_rect"};
+
+    private void readSprite(String context, PageGeometry.Builder page) throws IOException {
+        char end = beginMessage();
+        sprite.reset();
+        int found = 0;
+        while (!tryConsume(end)) {
+            String field = readIdentifier();
+            if (field == null)
+                throw error("Unexpected end of file");
+            String fieldContext = context + "." + field;
+            switch (field) {
+                case "name":            beginScalar(); sprite.name = readString(); found |= 1 << 0; break;
+                case "trimmed":         beginScalar(); readBool(); found |= 1 << 1; break;
+                case "rotated":         beginScalar(); sprite.rotated = readBool(); found |= 1 << 2; break;
+                case "is_solid":        beginScalar(); sprite.solid = readBool(); found |= 1 << 3; break;
+                case "untrimmed_size":  readValues("Size", fieldContext, "width", "height");
+                                        sprite.untrimmedWidth = values[0];
+                                        sprite.untrimmedHeight = values[1];
+                                        found |= 1 << 4;
+                                        break;
+                case "corner_offset":   readValues("Point", fieldContext, "x", "y");
+                                        sprite.offsetX = values[0];
+                                        sprite.offsetY = values[1];
+                                        found |= 1 << 5;
+                                        break;
+                case "source_rect":     readValues("Rect", fieldContext, "x", "y", "width", "height");
+                                        found |= 1 << 6;
+                                        break;
+                case "frame_rect":      readValues("Rect", fieldContext, "x", "y", "width", "height");
+                                        sprite.frameX = values[0];
+                                        sprite.frameY = values[1];
+                                        sprite.frameWidth = values[2];
+                                        found |= 1 << 7;
+                                        break;
+                case "pivot":           readValues("Point", fieldContext, "x", "y");
+                                        sprite.hasPivot = true;
+                                        sprite.pivotX = values[0];
+                                        sprite.pivotY = values[1];
+                                        break;
+                case "vertices":        readValues("Point", String.format("%s[%d]", fieldContext, sprite.vertexCount), "x", "y");
+                                        sprite.addVertex(values[0], values[1]);
+                                        break;
+                case "indices":         readIndices(); break;
+                default:                throw unknownField("Sprite", field);
+            }
+            endField();
+        }
+        checkRequired(found, context, SPRITE_REQUIRED);
+
+        page.addSprite(sprite.name, sprite.rotated, sprite.solid,
+                       sprite.untrimmedWidth, sprite.untrimmedHeight,
+                       sprite.offsetX, sprite.offsetY,
+                       sprite.frameX, sprite.frameY, sprite.frameWidth,
+                       sprite.hasPivot, sprite.pivotX, sprite.pivotY,
+                       sprite.vertices, sprite.vertexCount,
+                       sprite.indices, sprite.indexCount);
+    }
+
+    private TextureSetLayout.Page readPage() throws IOException {
+        char end = beginMessage();
+        int index = pageIndex++;
+        // The name and size may come after the sprites
+        PageGeometry.Builder geometry = new PageGeometry.Builder(index, 16, 256, 512);
+
+        String context = String.format("pages[%d]", index);
+        int found = 0;
+        while (!tryConsume(end)) {
+            String field = readIdentifier();
+            if (field == null)
+                throw error("Unexpected end of file");
+            switch (field) {
+                case "name":    beginScalar(); geometry.setName(readString()); found |= 1 << 0; break;
+                case "size":    readValues("Size", context + ".size", "width", "height");
+                                geometry.setSize(values[0], values[1]);
+                                found |= 1 << 1;
+                                break;
+                case "sprites": readSprite(String.format("%s.sprites[%d]", context, geometry.getSpriteCount()), geometry); break;
+                default:        throw unknownField("Page", field);
+            }
+            endField();
+        }
+        checkRequired(found, context, "name", "size");
+
+        TextureSetLayout.Page page = geometry.build().toLayoutPage();
+        for (TextureSetLayout.SourceImage image : page.images) {
+            listener.onImage(page, image);
+        }
+        return page;
+    }
+
+    private void readAtlas() throws IOException {
+        String field;
+        while ((field = readIdentifier()) != null) {
+            switch (field) {
+                case "pages":       listener.onPage(readPage()); break;
+                case "version":
+                case "description": beginScalar(); readString(); break;
+                default:            throw unknownField("Atlas", field);
+            }
+            endField();
+        }
+    }
+}
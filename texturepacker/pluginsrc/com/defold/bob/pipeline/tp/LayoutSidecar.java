@@ -0,0 +1,192 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Info;
+
+// A binary file with the parsed .tpinfo and its layout pages, so that the editor doesn't have to parse
+// the .tpinfo text and convert it to layout pages each time a project is opened.
+// The key is the size and modification time of the .tpinfo file it was created from (see getKey()),
+// so it can be checked without reading the .tpinfo. The file is rewritten when the .tpinfo changes.
+//
+// Format (big endian):
+//   magic, version, key
+//   size of the binary .tpinfo message, the message
+//   page count, then for each page: index, name, width, height, image count
+//   for each image: name, rotated, solid, rect (x, y, w, h), pivot (x, y), vertex count, vertices (x, y), index count, indices
+// Strings are stored as a length followed by the utf-8 bytes.
+public class LayoutSidecar {
+
+    static final String FOLDER_NAME = "_texturepacker_layouts";
+    static final String FILE_EXT = ".tplayout";
+    static final int MAGIC = 0x54504c59; // "TPLY"
+    static final int VERSION = 3;
+
+    public static class Entry {
+        public Info.Atlas                   info;
+        public List<TextureSetLayout.Page>  pages;
+    }
+
+    // The sidecar file of a .tpinfo (project path) in the cache directory.
+    // The name is the hash of the path, so that different paths never share a file
+    static public File getFile(File cacheDir, String path) {
+        String name = InfoCache.hash(path.getBytes(StandardCharsets.UTF_8)) + FILE_EXT;
+        return new File(new File(cacheDir, FOLDER_NAME), name);
+    }
+
+    // Only needs the file attributes, not the content
+    static public String getKey(File tpinfoFile) {
+        return tpinfoFile.length() + ":" + tpinfoFile.lastModified();
+    }
+
+    static private String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static private void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Returns null if the file doesn't exist, is corrupt, or was created from another version of the .tpinfo
+    static public Entry load(File file, String key) {
+        if (!file.exists())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            if (!readString(buffer).equals(key))
+                return null;
+
+            byte[] info = new byte[buffer.getInt()];
+            buffer.get(info);
+
+            int pageCount = buffer.getInt();
+            List<TextureSetLayout.Page> pages = new ArrayList<>(pageCount);
+            // Reused between the images
+            float[] vertices = new float[64];
+            int[] indices = new int[64];
+            for (int p = 0; p < pageCount; ++p) {
+                int index = buffer.getInt();
+                String name = readString(buffer);
+                float width = buffer.getFloat();
+                float height = buffer.getFloat();
+                int imageCount = buffer.getInt();
+
+                PageGeometry.Builder page = new PageGeometry.Builder(index, imageCount, 0, 0)
+                                                .setName(name)
+                                                .setSize(width, height);
+                for (int i = 0; i < imageCount; ++i) {
+                    String imageName = readString(buffer);
+                    boolean rotated = buffer.get() != 0;
+                    boolean solid = buffer.get() != 0;
+                    float x = buffer.getFloat();
+                    float y = buffer.getFloat();
+                    float w = buffer.getFloat();
+                    float h = buffer.getFloat();
+                    float pivotX = buffer.getFloat();
+                    float pivotY = buffer.getFloat();
+
+                    int vertexCount = buffer.getInt();
+                    if (vertexCount < 0)
+                        return null;
+                    if (vertices.length < vertexCount * 2)
+                        vertices = new float[vertexCount * 2];
+                    buffer.asFloatBuffer().get(vertices, 0, vertexCount * 2);
+                    buffer.position(buffer.position() + vertexCount * 2 * Float.BYTES);
+
+                    int indexCount = buffer.getInt();
+                    if (indexCount < 0)
+                        return null;
+                    if (indices.length < indexCount)
+                        indices = new int[indexCount];
+                    buffer.asIntBuffer().get(indices, 0, indexCount);
+                    buffer.position(buffer.position() + indexCount * Integer.BYTES);
+
+                    page.add(imageName, rotated, solid, x, y, w, h, pivotX, pivotY, vertices, vertexCount, indices, indexCount);
+                }
+                pages.add(page.build().toLayoutPage());
+            }
+            Entry entry = new Entry();
+            entry.info = Info.Atlas.parseFrom(info);
+            entry.pages = pages;
+            return entry;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    static private void write(DataOutputStream out, String key, Info.Atlas info, List<TextureSetLayout.Page> pages) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+        byte[] infoBytes = info.toByteArray();
+        out.writeInt(infoBytes.length);
+        out.write(infoBytes);
+        out.writeInt(pages.size());
+        for (TextureSetLayout.Page page : pages) {
+            out.writeInt(page.index);
+            writeString(out, page.name);
+            out.writeFloat(page.size.width);
+            out.writeFloat(page.size.height);
+            out.writeInt(page.images.size());
+            for (TextureSetLayout.SourceImage image : page.images) {
+                writeString(out, image.name);
+                out.writeByte(image.rotated ? 1 : 0);
+                out.writeByte(PageGeometry.isSolid(image) ? 1 : 0);
+                out.writeFloat(image.rect.x);
+                out.writeFloat(image.rect.y);
+                out.writeFloat(image.rect.width);
+                out.writeFloat(image.rect.height);
+                out.writeFloat(image.pivot.x);
+                out.writeFloat(image.pivot.y);
+                out.writeInt(image.vertices.size());
+                for (TextureSetLayout.Point p : image.vertices) {
+                    out.writeFloat(p.x);
+                    out.writeFloat(p.y);
+                }
+                out.writeInt(image.indices.size());
+                for (Integer index : image.indices) {
+                    out.writeInt(index);
+                }
+            }
+        }
+    }
+
+    // Writes to a unique temporary file first, so that a reader never sees a partially written file,
+    // and concurrent writers of the same sidecar don't write to the same file
+    static public void save(File file, String key, Info.Atlas info, List<TextureSetLayout.Page> pages) throws IOException {
+        file.getParentFile().mkdirs();
+        Path tmpFile = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                write(out, key, info, pages);
+            }
+            Files.move(tmpFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
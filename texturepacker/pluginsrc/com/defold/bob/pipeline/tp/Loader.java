@@ -5,30 +5,62 @@ package com.dynamo.bob.pipeline.tp;
 
 import com.dynamo.texturepacker.proto.Info;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 
 public class Loader {
 
+    // How many bytes we inspect when guessing the encoding
+    static final int DETECT_LENGTH = 256;
+
+    // A text .tpinfo only contains printable characters and whitespace.
+    // A binary one starts with a field tag followed by varint lengths and float data,
+    // so it will contain control characters within the first few bytes.
+    static public boolean isBinary(byte[] data) {
+        int length = Math.min(data.length, DETECT_LENGTH);
+        for (int i = 0; i < length; ++i) {
+            int c = data[i] & 0xFF;
+            if (c == '\t' || c == '\n' || c == '\r')
+                continue;
+            if (c < 0x20 || c == 0x7F)
+                return true;
+        }
+        return false;
+    }
+
     static public Info.Atlas load(byte[] data) throws IOException {
+        if (isBinary(data)) {
+            try {
+                return Info.Atlas.parseFrom(data);
+            } catch (InvalidProtocolBufferException e) {
+                // Not a valid binary message, so we let the text parser have a go (and report any errors)
+            }
+        }
         Info.Atlas.Builder builder = Info.Atlas.newBuilder();
         TextFormat.merge(new String(data), builder);
         return builder.build();
     }
 
     static public Info.Atlas load(File file) throws IOException {
-        Info.Atlas.Builder builder = Info.Atlas.newBuilder();
         try {
-            String content = Files.readString(file.toPath());
-            TextFormat.merge(content, builder);
+            return load(Files.readAllBytes(file.toPath()));
         } catch (FileNotFoundException e) {
             System.err.printf("File not found: %s\n", file);
             return null;
         }
-        return builder.build();
+    }
+
+    static public void save(Info.Atlas atlas, File file, boolean binary) throws IOException {
+        if (binary) {
+            Files.write(file.toPath(), atlas.toByteArray());
+        } else {
+            Files.write(file.toPath(), TextFormat.printToString(atlas).getBytes(StandardCharsets.UTF_8));
+        }
     }
 }
@@ -0,0 +1,473 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+
+// Reduces the vertex count of the sprite meshes exported by TexturePacker, before the texture set is created.
+//  * Duplicate vertices are merged
+//  * Solid sprites (the is_solid flag of the .tpinfo) become quads
+//  * Meshes with more vertices than the budget are replaced by their convex hull, which is then
+//    simplified by growing it outwards, as long as the added area stays within the limit
+// With polygon packing, TexturePacker places the sprites by their meshes, so the bounds of a sprite may
+// overlap the meshes of its neighbours. A new mesh is only used if it doesn't overlap the original mesh
+// of any other sprite on the page (that the original mesh didn't already overlap), so that no texels
+// from the neighbours are sampled.
+// The pages are copied into new flat pages (see PageGeometry), since the original ones may be shared with other atlases.
+public class MeshOptimizer {
+
+    static final double OVERLAP_EPSILON = 0.01; // In texels
+
+    public static class Stats {
+        public int      sprites;
+        public int      quads;          // Sprites replaced by a quad
+        public int      simplified;     // Sprites replaced by a simplified hull
+        public int      overBudget;     // Sprites that couldn't meet the budget within the area limit
+        public int      overlapping;    // Sprites kept as they were, since the new mesh would overlap another sprite
+        public long     verticesBefore;
+        public long     verticesAfter;
+        public long     indicesBefore;
+        public long     indicesAfter;
+        public double   areaBefore;
+        public double   areaAfter;
+
+        @Override
+        public String toString() {
+            double areaIncrease = areaBefore > 0 ? 100.0 * (areaAfter - areaBefore) / areaBefore : 0.0;
+            return String.format("%d sprites: %d quads, %d simplified, %d over budget, %d overlapping. vertices %d -> %d, indices %d -> %d, area %.0f -> %.0f (%+.1f%%)",
+                                 sprites, quads, simplified, overBudget, overlapping, verticesBefore, verticesAfter,
+                                 indicesBefore, indicesAfter, areaBefore, areaAfter, areaIncrease);
+        }
+    }
+
+    // vertexBudget: The max number of vertices per sprite
+    // maxExtraArea: The max area added to a sprite mesh, as a fraction of its original area
+    static public List<TextureSetLayout.Page> optimize(List<TextureSetLayout.Page> pages, int vertexBudget, float maxExtraArea, Stats stats) {
+        List<TextureSetLayout.Page> out = new ArrayList<>(pages.size());
+        for (TextureSetLayout.Page page : pages) {
+            PageTriangles original = new PageTriangles(page);
+            PageGeometry.Builder newPage = new PageGeometry.Builder(page.index, page.images.size(), page.images.size() * 4, page.images.size() * 6)
+                                                .setName(page.name)
+                                                .setSize(page.size.width, page.size.height);
+            for (int i = 0; i < page.images.size(); ++i) {
+                optimize(original, i, vertexBudget, maxExtraArea, stats, newPage);
+            }
+            out.add(newPage.build().toLayoutPage());
+        }
+        return out;
+    }
+
+    // Returns an error for each sprite in 'pages' whose mesh overlaps the mesh of another sprite in 'originalPages'
+    static public List<String> findOverlaps(List<TextureSetLayout.Page> originalPages, List<TextureSetLayout.Page> pages) {
+        List<String> errors = new ArrayList<>();
+        for (int p = 0; p < pages.size(); ++p) {
+            TextureSetLayout.Page page = pages.get(p);
+            PageTriangles original = new PageTriangles(originalPages.get(p));
+            for (int i = 0; i < page.images.size(); ++i) {
+                TextureSetLayout.SourceImage image = page.images.get(i);
+                float[] triangles = Atlas.getTriangles(image, page.size.height);
+                int other = original.findOverlap(i, triangles);
+                if (other >= 0) {
+                    errors.add(String.format("Page '%s': the mesh of sprite '%s' overlaps the sprite '%s'", page.name, image.name, original.page.images.get(other).name));
+                }
+            }
+        }
+        return errors;
+    }
+
+    // The triangles of the original meshes of a page, in page space
+    static private class PageTriangles {
+        final TextureSetLayout.Page page;
+        final int[]                 offsets;   // Sprite i uses the floats [offsets[i], offsets[i+1])
+        final float[]               triangles;
+        final float[]               bounds;    // (minx, miny, maxx, maxy) per sprite
+
+        PageTriangles(TextureSetLayout.Page page) {
+            this.page = page;
+            offsets = new int[page.images.size() + 1];
+            triangles = Atlas.getPageTriangles(page, offsets);
+            bounds = new float[page.images.size() * 4];
+            for (int i = 0; i < page.images.size(); ++i) {
+                float[] b = getBounds(triangles, offsets[i], offsets[i + 1]);
+                System.arraycopy(b, 0, bounds, i * 4, 4);
+            }
+        }
+
+        // Returns the first sprite (other than 'sprite' and its aliases) whose mesh overlaps the triangles,
+        // and isn't already overlapped by the original mesh of 'sprite' (the meshes from TexturePacker may overlap). Otherwise -1
+        int findOverlap(int sprite, float[] candidate) {
+            float[] b = getBounds(candidate, 0, candidate.length);
+            TextureSetLayout.Rectangle rect = page.images.get(sprite).rect;
+            for (int i = 0; i < page.images.size(); ++i) {
+                if (i == sprite)
+                    continue;
+                if (b[2] <= bounds[i * 4 + 0] || b[0] >= bounds[i * 4 + 2] || b[3] <= bounds[i * 4 + 1] || b[1] >= bounds[i * 4 + 3])
+                    continue;
+                // Identical sprites may share the same texels
+                TextureSetLayout.Rectangle otherRect = page.images.get(i).rect;
+                if (otherRect.x == rect.x && otherRect.y == rect.y && otherRect.width == rect.width && otherRect.height == rect.height)
+                    continue;
+                if (overlaps(candidate, 0, candidate.length, i) && !overlaps(triangles, offsets[sprite], offsets[sprite + 1], i))
+                    return i;
+            }
+            return -1;
+        }
+
+        // Returns true if any of the triangles in a[start, end) overlaps the original mesh of the sprite
+        boolean overlaps(float[] a, int start, int end, int sprite) {
+            for (int t = start; t + 5 < end; t += 6) {
+                for (int o = offsets[sprite]; o + 5 < offsets[sprite + 1]; o += 6) {
+                    if (trianglesOverlap(a, t, triangles, o))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Returns true if the mesh overlaps any other sprite on the original page
+    static private boolean overlapsOthers(PageTriangles original, int sprite, float[] xy, int[] indices) {
+        TextureSetLayout.SourceImage image = original.page.images.get(sprite);
+        TextureSetLayout.SourceImage mesh = new TextureSetLayout.SourceImage();
+        mesh.setRotated(image.rotated);
+        mesh.setRect(image.rect);
+        mesh.setVertices(new PageGeometry.Vertices(xy, 0, xy.length / 2));
+        mesh.setIndices(new PageGeometry.Indices(indices, 0, indices.length));
+        return original.findOverlap(sprite, Atlas.getTriangles(mesh, original.page.size.height)) >= 0;
+    }
+
+    // Adds the optimized image to the page
+    static private void optimize(PageTriangles original, int sprite, int vertexBudget, float maxExtraArea, Stats stats, PageGeometry.Builder page) {
+        TextureSetLayout.SourceImage image = original.page.images.get(sprite);
+        stats.sprites++;
+        stats.verticesBefore += image.vertices.size();
+        stats.indicesBefore += image.indices.size();
+
+        float[] xy = toFloatArray(image.vertices);
+        int[] indices = toIntArray(image.indices);
+        double area = getArea(xy, indices);
+        stats.areaBefore += area;
+
+        // Merge the duplicate vertices
+        int[] remap = new int[xy.length / 2];
+        float[] mergedXY = mergeVertices(xy, remap);
+        int[] mergedIndices = remapIndices(indices, remap);
+
+        float[] outXY = mergedXY;
+        int[] outIndices = mergedIndices;
+
+        if (mergedIndices.length >= 3) {
+            float[] bounds = getBounds(mergedXY);
+            double maxArea = area * (1.0 + maxExtraArea);
+            boolean clockwise = isClockwise(mergedXY, mergedIndices);
+
+            boolean done = false;
+            if (PageGeometry.isSolid(image)) {
+                float[] quad = new float[] { bounds[0], bounds[1], bounds[2], bounds[1], bounds[2], bounds[3], bounds[0], bounds[3] };
+                int[] quadIndices = createFan(4, clockwise);
+                if (overlapsOthers(original, sprite, quad, quadIndices)) {
+                    stats.overlapping++;
+                } else {
+                    outXY = quad;
+                    outIndices = quadIndices;
+                    stats.quads++;
+                }
+                done = true;
+            }
+            if (!done && mergedXY.length / 2 > vertexBudget) {
+                float[] hull = simplifyHull(getConvexHull(mergedXY), Math.max(3, vertexBudget), maxArea, bounds);
+                int[] hullIndices = hull != null ? createFan(hull.length / 2, clockwise) : null;
+                if (hull == null) {
+                    stats.overBudget++;
+                } else if (overlapsOthers(original, sprite, hull, hullIndices)) {
+                    stats.overlapping++;
+                } else {
+                    outXY = hull;
+                    outIndices = hullIndices;
+                    stats.simplified++;
+                }
+            }
+        }
+
+        stats.verticesAfter += outXY.length / 2;
+        stats.indicesAfter += outIndices.length;
+        stats.areaAfter += getArea(outXY, outIndices);
+
+        page.add(image.name, image.rotated, PageGeometry.isSolid(image),
+                 image.rect.x, image.rect.y, image.rect.width, image.rect.height,
+                 image.pivot.x, image.pivot.y,
+                 outXY, outXY.length / 2, outIndices, outIndices.length);
+    }
+
+    private static float[] toFloatArray(List<TextureSetLayout.Point> points) {
+        if (points instanceof PageGeometry.Vertices) {
+            PageGeometry.Vertices flat = (PageGeometry.Vertices)points;
+            return Arrays.copyOfRange(flat.xy, flat.start * 2, (flat.start + flat.count) * 2);
+        }
+        float[] out = new float[points.size() * 2];
+        int i = 0;
+        for (TextureSetLayout.Point p : points) {
+            out[i++] = p.x;
+            out[i++] = p.y;
+        }
+        return out;
+    }
+
+    private static int[] toIntArray(List<Integer> values) {
+        if (values instanceof PageGeometry.Indices) {
+            PageGeometry.Indices flat = (PageGeometry.Indices)values;
+            return Arrays.copyOfRange(flat.indices, flat.start, flat.start + flat.count);
+        }
+        int[] out = new int[values.size()];
+        for (int i = 0; i < out.length; ++i) {
+            out[i] = values.get(i);
+        }
+        return out;
+    }
+
+    // Returns the same array if there are no duplicates
+    private static float[] mergeVertices(float[] xy, int[] remap) {
+        Map<Long, Integer> unique = new HashMap<>();
+        float[] out = new float[xy.length];
+        int count = 0;
+        for (int i = 0; i < remap.length; ++i) {
+            long key = ((long)Float.floatToIntBits(xy[i * 2 + 0]) << 32) | (Float.floatToIntBits(xy[i * 2 + 1]) & 0xFFFFFFFFL);
+            Integer index = unique.get(key);
+            if (index == null) {
+                index = count++;
+                unique.put(key, index);
+                out[index * 2 + 0] = xy[i * 2 + 0];
+                out[index * 2 + 1] = xy[i * 2 + 1];
+            }
+            remap[i] = index;
+        }
+        return count == remap.length ? xy : Arrays.copyOf(out, count * 2);
+    }
+
+    // Also removes the triangles that became degenerate. Returns the same array if nothing changed
+    private static int[] remapIndices(int[] indices, int[] remap) {
+        int[] out = new int[indices.length];
+        int count = 0;
+        boolean changed = false;
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            int a = remap[indices[i + 0]];
+            int b = remap[indices[i + 1]];
+            int c = remap[indices[i + 2]];
+            changed |= a != indices[i + 0] || b != indices[i + 1] || c != indices[i + 2];
+            if (a == b || b == c || a == c) {
+                changed = true;
+                continue;
+            }
+            out[count++] = a;
+            out[count++] = b;
+            out[count++] = c;
+        }
+        return (changed || count != indices.length) ? Arrays.copyOf(out, count) : indices;
+    }
+
+    private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+        return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+    }
+
+    private static double getArea(float[] xy, int[] indices) {
+        double area = 0;
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            int a = indices[i + 0] * 2;
+            int b = indices[i + 1] * 2;
+            int c = indices[i + 2] * 2;
+            area += Math.abs(cross(xy[a], xy[a + 1], xy[b], xy[b + 1], xy[c], xy[c + 1])) * 0.5;
+        }
+        return area;
+    }
+
+    // The winding of the first non degenerate triangle, so that the new triangles can use the same winding
+    private static boolean isClockwise(float[] xy, int[] indices) {
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            int a = indices[i + 0] * 2;
+            int b = indices[i + 1] * 2;
+            int c = indices[i + 2] * 2;
+            double cross = cross(xy[a], xy[a + 1], xy[b], xy[b + 1], xy[c], xy[c + 1]);
+            if (cross != 0)
+                return cross < 0;
+        }
+        return false;
+    }
+
+    // Returns (minx, miny, maxx, maxy)
+    private static float[] getBounds(float[] xy) {
+        return getBounds(xy, 0, xy.length);
+    }
+
+    private static float[] getBounds(float[] xy, int start, int end) {
+        float[] bounds = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = start; i < end; i += 2) {
+            bounds[0] = Math.min(bounds[0], xy[i + 0]);
+            bounds[1] = Math.min(bounds[1], xy[i + 1]);
+            bounds[2] = Math.max(bounds[2], xy[i + 0]);
+            bounds[3] = Math.max(bounds[3], xy[i + 1]);
+        }
+        return bounds;
+    }
+
+    // Separating axis test of two triangles (x, y) * 3, starting at offset 'ao' and 'bo'.
+    // Triangles that only touch (e.g. share an edge) don't overlap
+    private static boolean trianglesOverlap(float[] a, int ao, float[] b, int bo) {
+        for (int n = 0; n < 6; ++n) {
+            float[] t = n < 3 ? a : b;
+            int o = n < 3 ? ao : bo;
+            int i0 = o + (n % 3) * 2;
+            int i1 = o + ((n + 1) % 3) * 2;
+            double axisX = -(t[i1 + 1] - t[i0 + 1]);
+            double axisY = t[i1] - t[i0];
+            double length = Math.sqrt(axisX * axisX + axisY * axisY);
+            if (length == 0)
+                continue;
+            double minA = Double.MAX_VALUE, maxA = -Double.MAX_VALUE;
+            double minB = Double.MAX_VALUE, maxB = -Double.MAX_VALUE;
+            for (int k = 0; k < 3; ++k) {
+                double pa = (a[ao + k * 2] * axisX + a[ao + k * 2 + 1] * axisY) / length;
+                double pb = (b[bo + k * 2] * axisX + b[bo + k * 2 + 1] * axisY) / length;
+                minA = Math.min(minA, pa);
+                maxA = Math.max(maxA, pa);
+                minB = Math.min(minB, pb);
+                maxB = Math.max(maxB, pb);
+            }
+            if (maxA <= minB + OVERLAP_EPSILON || maxB <= minA + OVERLAP_EPSILON)
+                return false;
+        }
+        return true;
+    }
+
+    // A triangle fan of a convex polygon
+    private static int[] createFan(int vertexCount, boolean clockwise) {
+        int[] out = new int[(vertexCount - 2) * 3];
+        int n = 0;
+        for (int i = 1; i + 1 < vertexCount; ++i) {
+            out[n++] = 0;
+            out[n++] = clockwise ? i + 1 : i;
+            out[n++] = clockwise ? i : i + 1;
+        }
+        return out;
+    }
+
+    // Andrew's monotone chain. Returns the hull in counter clockwise order, without collinear points
+    private static float[] getConvexHull(float[] xy) {
+        int count = xy.length / 2;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> xy[a * 2] != xy[b * 2] ? Float.compare(xy[a * 2], xy[b * 2]) : Float.compare(xy[a * 2 + 1], xy[b * 2 + 1]));
+
+        int[] hull = new int[count * 2];
+        int k = 0;
+        for (int i = 0; i < count; ++i) { // lower hull
+            int p = order[i] * 2;
+            while (k >= 2 && cross(xy[hull[k - 2]], xy[hull[k - 2] + 1], xy[hull[k - 1]], xy[hull[k - 1] + 1], xy[p], xy[p + 1]) <= 0)
+                k--;
+            hull[k++] = p;
+        }
+        for (int i = count - 2, lower = k + 1; i >= 0; --i) { // upper hull
+            int p = order[i] * 2;
+            while (k >= lower && cross(xy[hull[k - 2]], xy[hull[k - 2] + 1], xy[hull[k - 1]], xy[hull[k - 1] + 1], xy[p], xy[p + 1]) <= 0)
+                k--;
+            hull[k++] = p;
+        }
+        k--; // The last point is the same as the first
+
+        float[] out = new float[k * 2];
+        for (int i = 0; i < k; ++i) {
+            out[i * 2 + 0] = xy[hull[i]];
+            out[i * 2 + 1] = xy[hull[i] + 1];
+        }
+        return out;
+    }
+
+    private static double getPolygonArea(float[] polygon) {
+        double area = 0;
+        int n = polygon.length / 2;
+        for (int i = 0; i < n; ++i) {
+            int j = (i + 1) % n;
+            area += (double)polygon[i * 2] * polygon[j * 2 + 1] - (double)polygon[j * 2] * polygon[i * 2 + 1];
+        }
+        return Math.abs(area) * 0.5;
+    }
+
+    // Removes one edge at a time from the convex hull, by extending its two neighbouring edges until they meet.
+    // The edge that adds the least area is removed first.
+    // Returns null if the budget cannot be met without going over maxArea, or outside of the bounds
+    private static float[] simplifyHull(float[] hull, int vertexBudget, double maxArea, float[] bounds) {
+        double area = getPolygonArea(hull);
+        if (area > maxArea)
+            return null;
+
+        int n = hull.length / 2;
+        float[] polygon = hull;
+        while (n > vertexBudget) {
+            int bestEdge = -1;
+            double bestArea = Double.MAX_VALUE;
+            float bestX = 0;
+            float bestY = 0;
+            for (int i = 0; i < n; ++i) {
+                int prev = (i + n - 1) % n;
+                int next = (i + 1) % n;
+                int nextNext = (i + 2) % n;
+                float ax = polygon[i * 2], ay = polygon[i * 2 + 1];
+                float bx = polygon[next * 2], by = polygon[next * 2 + 1];
+
+                // The line through (prev, i) and the line through (nextNext, next)
+                double d1x = ax - polygon[prev * 2], d1y = ay - polygon[prev * 2 + 1];
+                double d2x = bx - polygon[nextNext * 2], d2y = by - polygon[nextNext * 2 + 1];
+                double denom = d1x * d2y - d1y * d2x;
+                if (denom == 0)
+                    continue; // Parallel edges never meet
+                double t = ((bx - ax) * d2y - (by - ay) * d2x) / denom;
+                double s = ((bx - ax) * d1y - (by - ay) * d1x) / denom;
+                if (t < 0 || s < 0)
+                    continue; // They meet on the inside
+                float x = (float)(ax + t * d1x);
+                float y = (float)(ay + t * d1y);
+                if (x < bounds[0] || x > bounds[2] || y < bounds[1] || y > bounds[3])
+                    continue;
+
+                double addedArea = Math.abs(cross(ax, ay, x, y, bx, by)) * 0.5;
+                if (addedArea < bestArea) {
+                    bestArea = addedArea;
+                    bestEdge = i;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+
+            if (bestEdge < 0 || area + bestArea > maxArea)
+                return null;
+            area += bestArea;
+
+            // Replace the two vertices of the edge with the new one
+            int next = (bestEdge + 1) % n;
+            float[] newPolygon = new float[(n - 1) * 2];
+            int k = 0;
+            for (int i = 0; i < n; ++i) {
+                if (i == next)
+                    continue;
+                if (i == bestEdge) {
+                    newPolygon[k++] = bestX;
+                    newPolygon[k++] = bestY;
+                } else {
+                    newPolygon[k++] = polygon[i * 2];
+                    newPolygon[k++] = polygon[i * 2 + 1];
+                }
+            }
+            polygon = newPolygon;
+            n--;
+        }
+        return polygon;
+    }
+}
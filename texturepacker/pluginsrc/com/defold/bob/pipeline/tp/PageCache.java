@@ -0,0 +1,300 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.dynamo.bob.Project;
+import com.dynamo.bob.pipeline.TextureGenerator;
+import com.dynamo.graphics.proto.Graphics.TextureImage;
+import com.dynamo.graphics.proto.Graphics.TextureProfile;
+
+// A persistent cache of generated page textures, stored in the build folder.
+// The key is the content hash of the page image, the texture settings and the bob version, so the
+// expensive texture generation can be skipped when only the .tpatlas has changed.
+// The least recently used files are removed when the total size goes over budget.
+public class PageCache {
+    private static Logger logger = Logger.getLogger(PageCache.class.getName());
+
+    static final String FOLDER_NAME = "_texturepacker_pages";
+    static final String FILE_EXT = ".page";
+    static final int VERSION = 2;
+
+    // The texture generator and its encoders come with bob, so a new bob may encode the pages differently
+    static final String BOB_VERSION = getBobVersion();
+
+    static private PageCache shared;
+
+    private final File directory;
+    private final long maxSize;
+    private long totalSize = -1; // Lazily computed
+    private final Map<String, FutureTask<TextureGenerator.GenerateResult>> inProgress = new HashMap<>();
+
+    public PageCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    // Creates the shared cache in the build folder. A size of 0 disables the cache.
+    static public synchronized void init(Project project, long maxSize) {
+        shared = null;
+        if (maxSize <= 0)
+            return;
+        shared = new PageCache(new File(getBuildFolder(project), FOLDER_NAME), maxSize);
+    }
+
+    static public File getBuildFolder(Project project) {
+        File buildDir = new File(project.getBuildDirectory());
+        if (!buildDir.isAbsolute()) {
+            buildDir = new File(project.getRootDirectory(), project.getBuildDirectory());
+        }
+        return buildDir;
+    }
+
+    static public synchronized void exit() {
+        shared = null;
+    }
+
+    // May return null
+    static public synchronized PageCache shared() {
+        return shared;
+    }
+
+    // Read at runtime, since the compiler would inline the constants of the bob the plugin was built with.
+    // If the version class isn't found, the size and time stamp of the bob jar are used instead
+    static private String getBobVersion() {
+        try {
+            Class<?> cls = Class.forName("com.dynamo.bob.archive.EngineVersion");
+            return cls.getField("version").get(null) + " " + cls.getField("sha1").get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            try {
+                File jar = new File(TextureGenerator.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                return jar.getName() + " " + jar.length() + " " + jar.lastModified();
+            } catch (Exception e2) {
+                return "unknown";
+            }
+        }
+    }
+
+    // The crop size (width, height) is null if the page isn't cropped
+    static public String key(byte[] imageData, TextureProfile textureProfile, boolean compress, TextureImage.Type textureImageType, int[] cropSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(VERSION);
+            data.writeUTF(BOB_VERSION);
+            data.writeUTF(InfoCache.hash(imageData));
+            data.writeUTF(textureProfile != null ? InfoCache.hash(textureProfile.toByteArray()) : "");
+            data.writeBoolean(compress);
+            data.writeUTF(textureImageType.name());
+            if (cropSize != null) {
+                data.writeInt(cropSize[0]);
+                data.writeInt(cropSize[1]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Not expected from a memory stream
+        }
+        return InfoCache.hash(out.toByteArray());
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + FILE_EXT);
+    }
+
+    // Returns null if the page isn't cached, or if the cached file cannot be read
+    public TextureGenerator.GenerateResult get(String key) {
+        File file = getFile(key);
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            TextureGenerator.GenerateResult result = read(in);
+            file.setLastModified(System.currentTimeMillis()); // Mark it as recently used
+            return result;
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    // Returns the cached page, or generates and caches it.
+    // Pages with the same key (e.g. identical page images in different atlases) that are requested
+    // concurrently are only generated once, and the other requesters read the result from the cache.
+    // The 'generated' array (may be null) gets whether this call generated the page.
+    public TextureGenerator.GenerateResult getOrCreate(String key, Callable<TextureGenerator.GenerateResult> create, boolean[] generated) throws Exception {
+        if (generated != null) {
+            generated[0] = false;
+        }
+        TextureGenerator.GenerateResult result = get(key);
+        if (result != null)
+            return result;
+
+        FutureTask<TextureGenerator.GenerateResult> task;
+        boolean owner = false;
+        synchronized (inProgress) {
+            task = inProgress.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() -> {
+                    TextureGenerator.GenerateResult page = create.call();
+                    put(key, page);
+                    return page;
+                });
+                inProgress.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (inProgress) {
+                    inProgress.remove(key);
+                }
+            }
+        }
+
+        try {
+            result = task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception)cause : e;
+        }
+        if (owner) {
+            if (generated != null) {
+                generated[0] = true;
+            }
+            return result;
+        }
+
+        // The result object belongs to the owner, so we read our own copy.
+        // If it wasn't cached (too large, or the write failed), we copy the owner's result instead
+        TextureGenerator.GenerateResult copy = get(key);
+        return copy != null ? copy : copyResult(result);
+    }
+
+    static private TextureGenerator.GenerateResult copyResult(TextureGenerator.GenerateResult result) {
+        TextureGenerator.GenerateResult copy = new TextureGenerator.GenerateResult();
+        copy.imageHeader = result.imageHeader.build().toBuilder();
+        copy.imageDatas = new ArrayList<>(result.imageDatas); // The data itself isn't modified
+        return copy;
+    }
+
+    static private long getSize(TextureGenerator.GenerateResult result) {
+        long size = result.imageHeader.build().getSerializedSize();
+        for (byte[] data : result.imageDatas) {
+            size += data.length;
+        }
+        return size;
+    }
+
+    // Stores the result, if it fits within the budget. The cache is only an optimization,
+    // so a failed write (e.g. a full disk) is logged, and doesn't fail the build
+    public void put(String key, TextureGenerator.GenerateResult result) {
+        if (getSize(result) > maxSize)
+            return; // It would be evicted right away
+
+        File file = getFile(key);
+        File tmp = null;
+        long size;
+        try {
+            directory.mkdirs();
+            // Write to a temporary file first, so that concurrent readers never see a partial file
+            tmp = File.createTempFile(key, ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp.toPath()))) {
+                write(out, result);
+            }
+            size = tmp.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, String.format("Failed to write the page cache file '%s'", file), e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (totalSize >= 0) {
+                totalSize += size;
+            }
+            evict();
+        }
+    }
+
+    private synchronized void evict() {
+        totalSize = evict(directory, FILE_EXT, totalSize, maxSize);
+    }
+
+    // Removes the least recently used files (by modification time) of the directory until their total size is within
+    // the max size, and returns the new total size. A negative total size is computed from the files.
+    // Also used for the page previews of the editor (see PagePreview)
+    static long evict(File directory, String fileExt, long totalSize, long maxSize) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(fileExt));
+        if (files == null)
+            return totalSize;
+        if (totalSize < 0) {
+            totalSize = 0;
+            for (File file : files) {
+                totalSize += file.length();
+            }
+        }
+        if (totalSize <= maxSize)
+            return totalSize;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (totalSize <= maxSize)
+                break;
+            long size = file.length();
+            if (file.delete()) {
+                totalSize -= size;
+            }
+        }
+        return totalSize;
+    }
+
+    static private void write(DataOutputStream out, TextureGenerator.GenerateResult result) throws IOException {
+        out.writeInt(VERSION);
+        byte[] header = result.imageHeader.build().toByteArray();
+        out.writeInt(header.length);
+        out.write(header);
+        out.writeInt(result.imageDatas.size());
+        for (byte[] data : result.imageDatas) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    static private TextureGenerator.GenerateResult read(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION)
+            throw new IOException("Unsupported page cache version");
+        TextureGenerator.GenerateResult result = new TextureGenerator.GenerateResult();
+        byte[] header = new byte[in.readInt()];
+        in.readFully(header);
+        result.imageHeader = TextureImage.newBuilder().mergeFrom(header);
+        int count = in.readInt();
+        result.imageDatas = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            result.imageDatas.add(data);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,158 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+
+// Crops the pages of an atlas to the area actually used by the sprites.
+// TexturePacker fills the pages from the top left corner, so the empty space is at the right and bottom edges
+// (e.g. on the last page of a multi page atlas). The crop keeps the top left corner, so the sprite rects stay the same,
+// and only the page size (and thus the uvs) changes.
+public class PageCrop {
+
+    static final int BLOCK_SIZE = 4; // The block size of the compressed texture formats
+
+    static boolean isPowerOfTwo(int value) {
+        return value > 0 && (value & (value - 1)) == 0;
+    }
+
+    static int nextPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    // The smallest allowed size that holds 'used' texels, but never larger than the original size.
+    // A power of two page stays a power of two, other sizes are aligned to the compression block size.
+    static int allowedSize(int used, int original) {
+        int size = isPowerOfTwo(original) ? nextPowerOfTwo(used) : ((used + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+        return Math.max(1, Math.min(size, original));
+    }
+
+    // Returns the (right, bottom) edge of the used area of the page, in texels from the top left corner.
+    // The bounds are those of the sprite geometry, i.e. the frame_rect of each sprite, or the
+    // simplified mesh if the meshes were optimized.
+    static public int[] getUsedBounds(TextureSetLayout.Page page) {
+        float pageHeight = page.size.height;
+        float right = 0;
+        float bottom = 0;
+        float[] triangles = new float[0];
+        for (TextureSetLayout.SourceImage image : page.images) {
+            int floatCount = image.indices.size() * 2;
+            if (floatCount == 0) {
+                // No geometry, use the image rect
+                right = Math.max(right, image.rect.x + image.rect.width);
+                bottom = Math.max(bottom, image.rect.y + image.rect.height);
+                continue;
+            }
+            if (triangles.length < floatCount) {
+                triangles = new float[floatCount];
+            }
+            Atlas.getTriangles(image, pageHeight, triangles, 0);
+            for (int i = 0; i < floatCount; i += 2) {
+                right = Math.max(right, triangles[i + 0]);
+                bottom = Math.max(bottom, pageHeight - triangles[i + 1]); // The triangles are y-up
+            }
+        }
+        int width = (int)Math.ceil(Math.min(right, page.size.width));
+        int height = (int)Math.ceil(Math.min(bottom, pageHeight));
+        return new int[] { Math.max(1, width), Math.max(1, height) };
+    }
+
+    // Returns the cropped (width, height) of each page.
+    // The pages of a texture array must have the same size, so they all get the size of the largest used area.
+    static public int[][] computeSizes(List<TextureSetLayout.Page> pages, boolean sameSize) {
+        int[][] sizes = new int[pages.size()][];
+        int maxWidth = 0;
+        int maxHeight = 0;
+        for (int i = 0; i < pages.size(); ++i) {
+            TextureSetLayout.Page page = pages.get(i);
+            int[] used = getUsedBounds(page);
+            sizes[i] = new int[] { allowedSize(used[0], (int)page.size.width), allowedSize(used[1], (int)page.size.height) };
+            maxWidth = Math.max(maxWidth, sizes[i][0]);
+            maxHeight = Math.max(maxHeight, sizes[i][1]);
+        }
+        if (sameSize) {
+            for (int i = 0; i < pages.size(); ++i) {
+                TextureSetLayout.Page page = pages.get(i);
+                // Pages of different sizes can't all get the same size without growing some of them, so they're kept as they are
+                if (maxWidth > (int)page.size.width || maxHeight > (int)page.size.height) {
+                    maxWidth = maxHeight = -1;
+                    break;
+                }
+            }
+            for (int i = 0; i < pages.size(); ++i) {
+                TextureSetLayout.Page page = pages.get(i);
+                sizes[i][0] = maxWidth < 0 ? (int)page.size.width : maxWidth;
+                sizes[i][1] = maxHeight < 0 ? (int)page.size.height : maxHeight;
+            }
+        }
+        return sizes;
+    }
+
+    static public boolean isCropped(List<TextureSetLayout.Page> pages, int[][] sizes) {
+        for (int i = 0; i < pages.size(); ++i) {
+            TextureSetLayout.Page page = pages.get(i);
+            if (sizes[i][0] != (int)page.size.width || sizes[i][1] != (int)page.size.height)
+                return true;
+        }
+        return false;
+    }
+
+    // The number of texels removed from all pages
+    static public long getSavedTexels(List<TextureSetLayout.Page> pages, int[][] sizes) {
+        long saved = 0;
+        for (int i = 0; i < pages.size(); ++i) {
+            TextureSetLayout.Page page = pages.get(i);
+            saved += (long)page.size.width * (long)page.size.height - (long)sizes[i][0] * sizes[i][1];
+        }
+        return saved;
+    }
+
+    static public String toString(int[][] sizes) {
+        StringBuilder sb = new StringBuilder();
+        for (int[] size : sizes) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(size[0]).append('x').append(size[1]);
+        }
+        return sb.toString();
+    }
+
+    // Returns copies of the pages with the new sizes. The images are shared with the original pages
+    static public List<TextureSetLayout.Page> cropPages(List<TextureSetLayout.Page> pages, int[][] sizes) {
+        List<TextureSetLayout.Page> out = new ArrayList<>(pages.size());
+        for (int i = 0; i < pages.size(); ++i) {
+            TextureSetLayout.Page page = pages.get(i);
+            TextureSetLayout.Page cropped = new TextureSetLayout.Page();
+            cropped.index = page.index;
+            cropped.name = page.name;
+            cropped.images = page.images;
+            cropped.size = new TextureSetLayout.Size(sizes[i][0], sizes[i][1]);
+            out.add(cropped);
+        }
+        return out;
+    }
+
+    // Used from editor
+    // Returns a copy of the top left part of the image, or the same image if the size is unchanged
+    static public BufferedImage crop(BufferedImage image, int width, int height) {
+        width = Math.min(width, image.getWidth());
+        height = Math.min(height, image.getHeight());
+        if (width == image.getWidth() && height == image.getHeight())
+            return image;
+        // Not a sub image, since the texture generator may read the data buffer directly
+        WritableRaster raster = image.getRaster().createCompatibleWritableRaster(width, height);
+        raster.setRect(image.getRaster());
+        return new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), null);
+    }
+}
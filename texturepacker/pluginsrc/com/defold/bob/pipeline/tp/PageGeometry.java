@@ -0,0 +1,367 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.texturepacker.proto.Info;
+
+// The sprites of a page, stored in flat primitive arrays: one float[] with the vertices and one int[] with the indices
+// of all sprites, with an offset table per sprite. This replaces a Point per vertex and a boxed index list per sprite.
+// The bob code uses the TextureSetLayout classes, so toLayoutPage() creates an Image (a SourceImage) per sprite,
+// whose vertex and index lists are read only views of the arrays.
+public class PageGeometry {
+    public int       index;
+    public String    name;
+    public float     width;
+    public float     height;
+
+    public int       spriteCount;
+    public String[]  names;
+    public boolean[] rotated;
+    public boolean[] solid;         // The is_solid flag of the .tpinfo: the sprite has no transparent pixels
+    public float[]   rects;         // (x, y, width, height) per sprite
+    public float[]   pivots;        // (x, y) per sprite
+    public float[]   vertices;      // (x, y) per vertex, for all sprites. In image space, y-up
+    public int[]     vertexOffsets; // spriteCount + 1 entries. Sprite i uses the vertices [vertexOffsets[i], vertexOffsets[i+1])
+    public int[]     indices;       // Local to each sprite
+    public int[]     indexOffsets;  // spriteCount + 1 entries. Sprite i uses the indices [indexOffsets[i], indexOffsets[i+1])
+
+    public int getVertexCount(int sprite) {
+        return vertexOffsets[sprite + 1] - vertexOffsets[sprite];
+    }
+
+    public int getIndexCount(int sprite) {
+        return indexOffsets[sprite + 1] - indexOffsets[sprite];
+    }
+
+    // Creates the page, one sprite at a time. The arrays grow as needed
+    public static class Builder {
+        private final PageGeometry page = new PageGeometry();
+        private int vertexCount;
+        private int indexCount;
+
+        public Builder(int index, int spriteCapacity, int vertexCapacity, int indexCapacity) {
+            spriteCapacity = Math.max(1, spriteCapacity);
+            page.index = index;
+            page.name = "";
+            page.names = new String[spriteCapacity];
+            page.rotated = new boolean[spriteCapacity];
+            page.solid = new boolean[spriteCapacity];
+            page.rects = new float[spriteCapacity * 4];
+            page.pivots = new float[spriteCapacity * 2];
+            page.vertices = new float[Math.max(1, vertexCapacity) * 2];
+            page.vertexOffsets = new int[spriteCapacity + 1];
+            page.indices = new int[Math.max(1, indexCapacity)];
+            page.indexOffsets = new int[spriteCapacity + 1];
+        }
+
+        public Builder setName(String name) {
+            page.name = name;
+            return this;
+        }
+
+        public Builder setSize(float width, float height) {
+            page.width = width;
+            page.height = height;
+            return this;
+        }
+
+        public int getSpriteCount() {
+            return page.spriteCount;
+        }
+
+        private int beginSprite(int spriteVertexCount, int spriteIndexCount) {
+            int s = page.spriteCount;
+            if (s + 1 >= page.vertexOffsets.length) {
+                int capacity = page.names.length * 2;
+                page.names = Arrays.copyOf(page.names, capacity);
+                page.rotated = Arrays.copyOf(page.rotated, capacity);
+                page.solid = Arrays.copyOf(page.solid, capacity);
+                page.rects = Arrays.copyOf(page.rects, capacity * 4);
+                page.pivots = Arrays.copyOf(page.pivots, capacity * 2);
+                page.vertexOffsets = Arrays.copyOf(page.vertexOffsets, capacity + 1);
+                page.indexOffsets = Arrays.copyOf(page.indexOffsets, capacity + 1);
+            }
+            if ((vertexCount + spriteVertexCount) * 2 > page.vertices.length) {
+                page.vertices = Arrays.copyOf(page.vertices, Math.max(page.vertices.length * 2, (vertexCount + spriteVertexCount) * 2));
+            }
+            if (indexCount + spriteIndexCount > page.indices.length) {
+                page.indices = Arrays.copyOf(page.indices, Math.max(page.indices.length * 2, indexCount + spriteIndexCount));
+            }
+            page.vertexOffsets[s] = vertexCount;
+            page.indexOffsets[s] = indexCount;
+            page.spriteCount++;
+            return s;
+        }
+
+        // Adds a sprite from the raw TexturePacker values. The pivot and the vertices are in TexturePacker image space (y-down).
+        // The values are transformed into the space that the bob code wants
+        public void addSprite(String name, boolean rotated, boolean solid,
+                              float originalWidth, float originalHeight, // Original, unrotated size
+                              float offsetX, float offsetY, // The offset from the top left corner of the image, where to find the tight rect (unrotated)
+                              float tightX, float tightY, float tightWidth, // The tight rect, potentially rotated 90 deg CW
+                              boolean hasPivot, float pivotX, float pivotY,
+                              float[] xy, int spriteVertexCount,
+                              int[] spriteIndices, int spriteIndexCount) {
+            int s = beginSprite(spriteVertexCount, spriteIndexCount);
+            page.names[s] = name;
+            page.rotated[s] = rotated;
+            page.solid[s] = solid;
+
+            // For legacy reasons, the other bob code wants the rect already rotated
+            float[] rects = page.rects;
+            if (rotated) {
+                // When rotated, the "top left" of the image is now the top right
+                // and we need to use the tight rect to find it
+                float cornerX = tightX + tightWidth + offsetY;
+                float cornerY = tightY - offsetX;
+                rects[s * 4 + 0] = cornerX - originalHeight;
+                rects[s * 4 + 1] = cornerY;
+                rects[s * 4 + 2] = originalHeight;
+                rects[s * 4 + 3] = originalWidth;
+            } else {
+                rects[s * 4 + 0] = tightX - offsetX;
+                rects[s * 4 + 1] = tightY - offsetY;
+                rects[s * 4 + 2] = originalWidth;
+                rects[s * 4 + 3] = originalHeight;
+            }
+
+            // The pivot is transformed like a regular vertex. The default is the center of the image
+            if (!hasPivot) {
+                pivotX = originalWidth * 0.5f;
+                pivotY = originalHeight * 0.5f;
+            }
+            page.pivots[s * 2 + 0] = pivotX;
+            page.pivots[s * 2 + 1] = originalHeight - pivotY;
+
+            // When they come from TP the vertices are upside down
+            // but otherwise in the original image space (the way the builder wants it)
+            float[] vertices = page.vertices;
+            for (int i = 0; i < spriteVertexCount; ++i) {
+                vertices[(vertexCount + i) * 2 + 0] = xy[i * 2 + 0];
+                vertices[(vertexCount + i) * 2 + 1] = originalHeight - xy[i * 2 + 1];
+            }
+            vertexCount += spriteVertexCount;
+
+            System.arraycopy(spriteIndices, 0, page.indices, indexCount, spriteIndexCount);
+            indexCount += spriteIndexCount;
+        }
+
+        // Adds a sprite whose values are already transformed (e.g. a simplified mesh, or a sprite read from a layout cache)
+        public void add(String name, boolean rotated, boolean solid,
+                        float x, float y, float width, float height,
+                        float pivotX, float pivotY,
+                        float[] xy, int spriteVertexCount,
+                        int[] spriteIndices, int spriteIndexCount) {
+            int s = beginSprite(spriteVertexCount, spriteIndexCount);
+            page.names[s] = name;
+            page.rotated[s] = rotated;
+            page.solid[s] = solid;
+            page.rects[s * 4 + 0] = x;
+            page.rects[s * 4 + 1] = y;
+            page.rects[s * 4 + 2] = width;
+            page.rects[s * 4 + 3] = height;
+            page.pivots[s * 2 + 0] = pivotX;
+            page.pivots[s * 2 + 1] = pivotY;
+            System.arraycopy(xy, 0, page.vertices, vertexCount * 2, spriteVertexCount * 2);
+            vertexCount += spriteVertexCount;
+            System.arraycopy(spriteIndices, 0, page.indices, indexCount, spriteIndexCount);
+            indexCount += spriteIndexCount;
+        }
+
+        // Copies a sprite of another page
+        public void add(PageGeometry src, int sprite) {
+            int vertexStart = src.vertexOffsets[sprite];
+            int indexStart = src.indexOffsets[sprite];
+            int spriteVertexCount = src.getVertexCount(sprite);
+            int spriteIndexCount = src.getIndexCount(sprite);
+            int s = beginSprite(spriteVertexCount, spriteIndexCount);
+            page.names[s] = src.names[sprite];
+            page.rotated[s] = src.rotated[sprite];
+            page.solid[s] = src.solid[sprite];
+            System.arraycopy(src.rects, sprite * 4, page.rects, s * 4, 4);
+            System.arraycopy(src.pivots, sprite * 2, page.pivots, s * 2, 2);
+            System.arraycopy(src.vertices, vertexStart * 2, page.vertices, vertexCount * 2, spriteVertexCount * 2);
+            vertexCount += spriteVertexCount;
+            System.arraycopy(src.indices, indexStart, page.indices, indexCount, spriteIndexCount);
+            indexCount += spriteIndexCount;
+        }
+
+        // Trims the arrays to their final size
+        public PageGeometry build() {
+            int s = page.spriteCount;
+            page.vertexOffsets[s] = vertexCount;
+            page.indexOffsets[s] = indexCount;
+            page.names = Arrays.copyOf(page.names, s);
+            page.rotated = Arrays.copyOf(page.rotated, s);
+            page.solid = Arrays.copyOf(page.solid, s);
+            page.rects = Arrays.copyOf(page.rects, s * 4);
+            page.pivots = Arrays.copyOf(page.pivots, s * 2);
+            page.vertices = Arrays.copyOf(page.vertices, vertexCount * 2);
+            page.vertexOffsets = Arrays.copyOf(page.vertexOffsets, s + 1);
+            page.indices = Arrays.copyOf(page.indices, indexCount);
+            page.indexOffsets = Arrays.copyOf(page.indexOffsets, s + 1);
+            return page;
+        }
+    }
+
+    static public PageGeometry create(int index, Info.Page srcPage) {
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (Info.Sprite sprite : srcPage.getSpritesList()) {
+            vertexCount += sprite.getVerticesCount();
+            indexCount += sprite.getIndicesCount();
+        }
+
+        Builder builder = new Builder(index, srcPage.getSpritesCount(), vertexCount, indexCount)
+                                .setName(srcPage.getName())
+                                .setSize(srcPage.getSize().getWidth(), srcPage.getSize().getHeight());
+
+        // Reused between the sprites
+        float[] xy = new float[16];
+        int[] spriteIndices = new int[16];
+        for (Info.Sprite sprite : srcPage.getSpritesList()) {
+            int spriteVertexCount = sprite.getVerticesCount();
+            if (xy.length < spriteVertexCount * 2)
+                xy = new float[spriteVertexCount * 2];
+            for (int i = 0; i < spriteVertexCount; ++i) {
+                Info.Point p = sprite.getVertices(i);
+                xy[i * 2 + 0] = p.getX();
+                xy[i * 2 + 1] = p.getY();
+            }
+            int spriteIndexCount = sprite.getIndicesCount();
+            if (spriteIndices.length < spriteIndexCount)
+                spriteIndices = new int[spriteIndexCount];
+            for (int i = 0; i < spriteIndexCount; ++i) {
+                spriteIndices[i] = sprite.getIndices(i);
+            }
+
+            Info.Size originalSize = sprite.getUntrimmedSize(); // Original, unrotated size
+            Info.Rect tightRect    = sprite.getFrameRect();     // potentially rotated 90 deg CW
+            Info.Point offset      = sprite.getCornerOffset();  // unrotated
+            Info.Point pivot       = sprite.getPivot();
+            builder.addSprite(sprite.getName(), sprite.getRotated(), sprite.getIsSolid(),
+                              originalSize.getWidth(), originalSize.getHeight(),
+                              offset.getX(), offset.getY(),
+                              tightRect.getX(), tightRect.getY(), tightRect.getWidth(),
+                              sprite.hasPivot(), pivot.getX(), pivot.getY(), // backwards compatibility
+                              xy, spriteVertexCount, spriteIndices, spriteIndexCount);
+        }
+        return builder.build();
+    }
+
+    // The SourceImage of a sprite, for the bob code. The vertex and index lists are read only views of the page arrays
+    public static class Image extends TextureSetLayout.SourceImage {
+        public final PageGeometry geometry;
+        public final int          sprite;
+
+        Image(PageGeometry geometry, int sprite) {
+            this.geometry = geometry;
+            this.sprite = sprite;
+            setName(geometry.names[sprite]);
+            setRotated(geometry.rotated[sprite]);
+            setRect(new TextureSetLayout.Rectangle(geometry.rects[sprite * 4 + 0], geometry.rects[sprite * 4 + 1],
+                                                   geometry.rects[sprite * 4 + 2], geometry.rects[sprite * 4 + 3]));
+            setPivot(new TextureSetLayout.Point(geometry.pivots[sprite * 2 + 0], geometry.pivots[sprite * 2 + 1]));
+            setVertices(new Vertices(geometry.vertices, geometry.vertexOffsets[sprite], geometry.getVertexCount(sprite)));
+            setIndices(new Indices(geometry.indices, geometry.indexOffsets[sprite], geometry.getIndexCount(sprite)));
+        }
+
+        public boolean isSolid() {
+            return geometry.solid[sprite];
+        }
+    }
+
+    // The SourceImage class of bob has no solid flag, so the other images are never solid
+    static public boolean isSolid(TextureSetLayout.SourceImage image) {
+        return image instanceof Image && ((Image)image).isSolid();
+    }
+
+    // Each get() creates a new Point, so changing it doesn't change the page
+    static class Vertices extends AbstractList<TextureSetLayout.Point> implements RandomAccess {
+        final float[] xy;
+        final int     start;
+        final int     count;
+
+        Vertices(float[] xy, int start, int count) {
+            this.xy = xy;
+            this.start = start;
+            this.count = count;
+        }
+
+        @Override
+        public TextureSetLayout.Point get(int i) {
+            if (i < 0 || i >= count)
+                throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for length %d", i, count));
+            return new TextureSetLayout.Point(xy[(start + i) * 2 + 0], xy[(start + i) * 2 + 1]);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    static class Indices extends AbstractList<Integer> implements RandomAccess {
+        final int[] indices;
+        final int   start;
+        final int   count;
+
+        Indices(int[] indices, int start, int count) {
+            this.indices = indices;
+            this.start = start;
+            this.count = count;
+        }
+
+        @Override
+        public Integer get(int i) {
+            if (i < 0 || i >= count)
+                throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for length %d", i, count));
+            return indices[start + i];
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    // The adapter for the bob code using the TextureSetLayout classes
+    public TextureSetLayout.Page toLayoutPage() {
+        TextureSetLayout.Page page = new TextureSetLayout.Page();
+        page.index = index;
+        page.name = name;
+        page.size = new TextureSetLayout.Size(width, height);
+        page.images = new ArrayList<>(spriteCount);
+        for (int s = 0; s < spriteCount; ++s) {
+            page.images.add(new Image(this, s));
+        }
+        return page;
+    }
+
+    // The page geometry of a layout page, if all its images are backed by the same one. Otherwise null
+    static public PageGeometry get(TextureSetLayout.Page page) {
+        PageGeometry geometry = null;
+        for (TextureSetLayout.SourceImage image : page.images) {
+            if (!(image instanceof Image))
+                return null;
+            Image flat = (Image)image;
+            if (geometry == null)
+                geometry = flat.geometry;
+            else if (geometry != flat.geometry)
+                return null;
+        }
+        return geometry;
+    }
+
+    public List<String> getNames() {
+        return Arrays.asList(names);
+    }
+}
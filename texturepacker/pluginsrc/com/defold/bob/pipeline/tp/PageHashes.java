@@ -0,0 +1,63 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.dynamo.bob.textureset.TextureSetLayout;
+
+// The hashes of the geometry of a page, and of each of its sprites.
+// Used to tell which sprites changed between two versions of a .tpinfo (see InfoDiff),
+// and as part of the TextureSetCache key.
+public class PageHashes {
+    public String geometryHash; // The page size and all its sprites
+    public Map<String, String> spriteHashes = new HashMap<>();
+
+    // A short (64 bit) hex hash, enough to detect changes
+    static String shortHash(byte[] data) {
+        return InfoCache.hash(data).substring(0, 16);
+    }
+
+    static String hashImage(TextureSetLayout.SourceImage image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(image.name);
+            out.writeBoolean(image.rotated);
+            out.writeFloat(image.rect.x);
+            out.writeFloat(image.rect.y);
+            out.writeFloat(image.rect.width);
+            out.writeFloat(image.rect.height);
+            out.writeFloat(image.pivot.x);
+            out.writeFloat(image.pivot.y);
+            for (TextureSetLayout.Point p : image.vertices) {
+                out.writeFloat(p.x);
+                out.writeFloat(p.y);
+            }
+            for (int index : image.indices) {
+                out.writeInt(index);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Not expected from a memory stream
+        }
+        return shortHash(bytes.toByteArray());
+    }
+
+    static public PageHashes create(TextureSetLayout.Page page) {
+        PageHashes hashes = new PageHashes();
+        StringBuilder geometry = new StringBuilder();
+        geometry.append(page.size.width).append('x').append(page.size.height);
+        for (TextureSetLayout.SourceImage image : page.images) {
+            String hash = hashImage(image);
+            hashes.spriteHashes.put(image.name, hash);
+            geometry.append(hash);
+        }
+        hashes.geometryHash = shortHash(geometry.toString().getBytes(StandardCharsets.UTF_8));
+        return hashes;
+    }
+}
@@ -0,0 +1,168 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+// Downscaled copies of the page images, for the editor's .tpinfo and .tpatlas scene views.
+// The pages are halved (with a 2x2 box filter, like a mip chain) until they fit within the max size,
+// and the result is cached as a png in the cache directory, keyed by the hash of the page image.
+// The next time the project is opened, the full size page image doesn't have to be decoded at all.
+// Like the PageCache, the least recently used previews are removed when the total size goes over budget.
+public class PagePreview {
+    private static Logger logger = Logger.getLogger(PagePreview.class.getName());
+
+    static final String FOLDER_NAME = "_texturepacker_previews";
+    static final String FILE_EXT = ".png";
+    static final long MAX_CACHE_SIZE = 256L * 1024 * 1024;
+
+    // The number of times a page has to be halved to fit within the max size
+    static public int getLevel(int width, int height, int maxSize) {
+        int level = 0;
+        while ((width > maxSize || height > maxSize) && (width > 1 || height > 1)) {
+            width = Math.max(1, (width + 1) / 2);
+            height = Math.max(1, (height + 1) / 2);
+            level++;
+        }
+        return level;
+    }
+
+    // The key is the hash of the page image content (e.g. the sha1 of the content generator in the editor)
+    static public File getFile(File cacheDir, String key, int maxSize) {
+        String name = InfoCache.hash(key.getBytes(StandardCharsets.UTF_8)) + "_" + maxSize + FILE_EXT;
+        return new File(new File(cacheDir, FOLDER_NAME), name);
+    }
+
+    // Averages the 2x2 block at (x, y). The colors are weighted by their alpha,
+    // so that the transparent texels around the sprites don't darken the edges
+    static private int average(int c0, int c1, int c2, int c3) {
+        int a0 = c0 >>> 24;
+        int a1 = c1 >>> 24;
+        int a2 = c2 >>> 24;
+        int a3 = c3 >>> 24;
+        int alphaSum = a0 + a1 + a2 + a3;
+        if (alphaSum == 0)
+            return 0;
+        int r = (((c0 >> 16) & 0xff) * a0 + ((c1 >> 16) & 0xff) * a1 + ((c2 >> 16) & 0xff) * a2 + ((c3 >> 16) & 0xff) * a3 + alphaSum / 2) / alphaSum;
+        int g = (((c0 >> 8) & 0xff) * a0 + ((c1 >> 8) & 0xff) * a1 + ((c2 >> 8) & 0xff) * a2 + ((c3 >> 8) & 0xff) * a3 + alphaSum / 2) / alphaSum;
+        int b = ((c0 & 0xff) * a0 + (c1 & 0xff) * a1 + (c2 & 0xff) * a2 + (c3 & 0xff) * a3 + alphaSum / 2) / alphaSum;
+        int a = (alphaSum + 2) / 4;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // Halves a row pair (y0, y1) of the source into the destination row. The last column is repeated for odd widths
+    static private void halveRow(int[] row0, int[] row1, int width, int[] out, int outOffset, int outWidth) {
+        for (int x = 0; x < outWidth; ++x) {
+            int x0 = Math.min(x * 2, width - 1);
+            int x1 = Math.min(x * 2 + 1, width - 1);
+            out[outOffset + x] = average(row0[x0], row0[x1], row1[x0], row1[x1]);
+        }
+    }
+
+    // Returns the pixels (argb) of the image halved once. The source rows are read two at a time,
+    // so the full size image is never copied as a whole
+    static private int[] halve(BufferedImage image, int outWidth, int outHeight) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row0 = new int[width];
+        int[] row1 = new int[width];
+        int[] out = new int[outWidth * outHeight];
+        for (int y = 0; y < outHeight; ++y) {
+            image.getRGB(0, Math.min(y * 2, height - 1), width, 1, row0, 0, width);
+            image.getRGB(0, Math.min(y * 2 + 1, height - 1), width, 1, row1, 0, width);
+            halveRow(row0, row1, width, out, y * outWidth, outWidth);
+        }
+        return out;
+    }
+
+    static private int[] halve(int[] pixels, int width, int height, int outWidth, int outHeight) {
+        int[] row0 = new int[width];
+        int[] row1 = new int[width];
+        int[] out = new int[outWidth * outHeight];
+        for (int y = 0; y < outHeight; ++y) {
+            System.arraycopy(pixels, Math.min(y * 2, height - 1) * width, row0, 0, width);
+            System.arraycopy(pixels, Math.min(y * 2 + 1, height - 1) * width, row1, 0, width);
+            halveRow(row0, row1, width, out, y * outWidth, outWidth);
+        }
+        return out;
+    }
+
+    // Returns the image halved until it fits within the max size, or the same image if it already fits
+    static public BufferedImage downscale(BufferedImage image, int maxSize) {
+        int level = getLevel(image.getWidth(), image.getHeight(), maxSize);
+        if (level == 0)
+            return image;
+
+        int width = Math.max(1, (image.getWidth() + 1) / 2);
+        int height = Math.max(1, (image.getHeight() + 1) / 2);
+        int[] pixels = halve(image, width, height);
+        for (int i = 1; i < level; ++i) {
+            int outWidth = Math.max(1, (width + 1) / 2);
+            int outHeight = Math.max(1, (height + 1) / 2);
+            pixels = halve(pixels, width, height, outWidth, outHeight);
+            width = outWidth;
+            height = outHeight;
+        }
+
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        out.setRGB(0, 0, width, height, pixels, 0, width);
+        return out;
+    }
+
+    // Used from editor
+    // Returns the cached preview, or null if there is none (or it cannot be read)
+    static public BufferedImage load(File cacheDir, String key, int maxSize) {
+        File file = getFile(cacheDir, key, maxSize);
+        if (!file.exists())
+            return null;
+        try {
+            BufferedImage image = ImageIO.read(file);
+            file.setLastModified(System.currentTimeMillis()); // Mark it as recently used
+            return image;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Used from editor
+    // Returns the downscaled page image, and stores it in the cache directory.
+    // Images that already fit within the max size are returned as they are, and not cached.
+    static public BufferedImage create(File cacheDir, String key, BufferedImage image, int maxSize) {
+        BufferedImage preview = downscale(image, maxSize);
+        if (preview == image)
+            return image;
+
+        File file = getFile(cacheDir, key, maxSize);
+        File tmpFile = null;
+        try {
+            // Write to a temporary file first, so that a reader never sees a partially written file
+            file.getParentFile().mkdirs();
+            tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            if (!ImageIO.write(preview, "png", tmpFile))
+                throw new IOException("No png writer available");
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, String.format("Failed to write the page preview '%s'", file), e);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            return preview;
+        }
+
+        // A preview is only written when a page image changed, so the total size is computed each time
+        synchronized (PagePreview.class) {
+            PageCache.evict(file.getParentFile(), FILE_EXT, -1, MAX_CACHE_SIZE);
+        }
+        return preview;
+    }
+}
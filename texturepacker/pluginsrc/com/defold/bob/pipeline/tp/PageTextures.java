@@ -0,0 +1,258 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import java.awt.image.BufferedImage;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.pipeline.Texc.FlipAxis;
+import com.dynamo.bob.pipeline.TextureGenerator;
+import com.dynamo.bob.pipeline.TextureGeneratorException;
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.bob.util.TextureUtil;
+
+import com.dynamo.graphics.proto.Graphics.TextureImage;
+import com.dynamo.graphics.proto.Graphics.TextureProfile;
+
+// Decodes and generates the page textures of an atlas.
+// With a pool, the pages are processed concurrently, otherwise one after the other.
+// The pool is shared by all atlases, so the total number of page threads is bounded
+// regardless of how many bob tasks are running.
+// The pages are decoded one at a time from their resources, and only the generated pages are kept.
+// The decoded images held at once are also bounded by a memory budget, shared by all atlases.
+public class PageTextures {
+
+    static private ForkJoinPool pool;
+
+    static private final Object memoryLock = new Object();
+    static private long memoryBudget; // 0 means unlimited
+    static private long memoryInUse;
+
+    // A parallelism of 1 or less processes the pages on the calling thread
+    static public synchronized void setParallelism(int parallelism) {
+        if (pool != null) {
+            if (pool.getParallelism() == parallelism)
+                return;
+            pool.shutdown();
+            pool = null;
+        }
+        if (parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    static synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    // The max number of bytes used by the decoded page images at once. 0 means unlimited
+    static public void setMemoryBudget(long bytes) {
+        synchronized (memoryLock) {
+            memoryBudget = bytes;
+            memoryLock.notifyAll();
+        }
+    }
+
+    // The estimated memory needed to generate each page: the decoded image, and the 4 bytes per pixel copy made by the texture generator.
+    // The decoded sizes come from the image headers (see ImageHeader.getDecodedSize()). Without one (0), 4 bytes per pixel is assumed
+    static public long[] getPageMemory(List<TextureSetLayout.Page> pages, long[] decodedSizes) {
+        long[] memory = new long[pages.size()];
+        for (int i = 0; i < pages.size(); ++i) {
+            TextureSetLayout.Size size = pages.get(i).size;
+            long copySize = (long)size.width * (long)size.height * 4;
+            long decodedSize = decodedSizes != null ? decodedSizes[i] : 0;
+            memory[i] = (decodedSize > 0 ? decodedSize : copySize) + copySize;
+        }
+        return memory;
+    }
+
+    // Waits until the page fits in the budget. A page larger than the whole budget gets to run on its own
+    static void acquireMemory(long bytes) throws InterruptedException {
+        synchronized (memoryLock) {
+            while (memoryBudget > 0 && memoryInUse > 0 && memoryInUse + bytes > memoryBudget) {
+                memoryLock.wait();
+            }
+            memoryInUse += bytes;
+        }
+    }
+
+    static void releaseMemory(long bytes) {
+        synchronized (memoryLock) {
+            memoryInUse -= bytes;
+            memoryLock.notifyAll();
+        }
+    }
+
+    // TextureGeneratorException only takes a message, so the original exception is attached as the cause.
+    // Wrapping exceptions without anything to add are unwrapped first
+    static TextureGeneratorException toTextureGeneratorException(Throwable e) {
+        while ((e instanceof ExecutionException || e.getClass() == RuntimeException.class) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof TextureGeneratorException)
+            return (TextureGeneratorException)e;
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt(); // Let the caller see it too
+        }
+        TextureGeneratorException out = new TextureGeneratorException(e.getMessage() != null ? e.getMessage() : e.toString());
+        out.initCause(e);
+        return out;
+    }
+
+    private interface PageFunction<T> {
+        T apply(int index) throws Exception;
+    }
+
+    // Runs the function for each page index, and returns the results in page order
+    static <T> List<T> forEachPage(int count, PageFunction<T> function) throws Exception {
+        ForkJoinPool pool = getPool();
+        List<T> results = new ArrayList<>(count);
+        if (pool == null || count < 2) {
+            for (int i = 0; i < count; ++i) {
+                results.add(function.apply(i));
+            }
+            return results;
+        }
+
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final int index = i;
+            tasks.add(pool.submit(() -> function.apply(index)));
+        }
+        try {
+            for (ForkJoinTask<T> task : tasks) {
+                results.add(task.get());
+            }
+        } catch (ExecutionException e) {
+            for (ForkJoinTask<T> task : tasks) {
+                task.cancel(false);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    static public List<BufferedImage> loadImages(List<IResource> resources) throws IOException, CompileExceptionError {
+        try {
+            // Let bob decode each image, so we get exactly the same result as TextureUtil.loadImages()
+            return forEachPage(resources.size(), (index) -> TextureUtil.loadImages(Arrays.asList(resources.get(index))).get(0));
+        } catch (IOException | CompileExceptionError e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    static public TextureGenerator.GenerateResult generatePage(BufferedImage image, TextureProfile textureProfile, boolean compress) throws TextureGeneratorException {
+        try {
+            return TextureGenerator.generate(image, textureProfile, compress, EnumSet.of(FlipAxis.FLIP_AXIS_Y));
+        } catch (IOException e) {
+            throw toTextureGeneratorException(e);
+        }
+    }
+
+    // Decodes, crops (if the crop size isn't null) and generates a single page.
+    // The decoded image is released as soon as the page is generated.
+    static TextureGenerator.GenerateResult generatePage(IResource resource, long memory, int[] cropSize, TextureProfile textureProfile, boolean compress) throws Exception {
+        try {
+            acquireMemory(memory);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            TextureGeneratorException out = new TextureGeneratorException(String.format("Interrupted while waiting for memory to generate '%s'", resource.getPath()));
+            out.initCause(e);
+            throw out;
+        }
+        try {
+            BufferedImage image = TextureUtil.loadImages(Arrays.asList(resource)).get(0);
+            if (cropSize != null) {
+                image = PageCrop.crop(image, cropSize[0], cropSize[1]);
+            }
+            return generatePage(image, textureProfile, compress);
+        } finally {
+            releaseMemory(memory);
+        }
+    }
+
+    static private TextureGenerator.GenerateResult combinePages(List<TextureGenerator.GenerateResult> results, TextureImage.Type textureImageType) {
+        return TextureUtil.createCombinedTextureImage(results.toArray(new TextureGenerator.GenerateResult[0]), textureImageType);
+    }
+
+    // Generates each page from its image resource, one page at a time (or as many as the parallelism and the memory budget allows).
+    // Unlike loading all the images first, the peak memory is that of the pages being generated, regardless of the page count.
+    // The 'pageMemory' is the estimated memory of each page (see getPageMemory()), and 'cropSizes' may be null.
+    static public TextureGenerator.GenerateResult createMultiPageTexture(List<IResource> imageResources, long[] pageMemory, int[][] cropSizes, TextureImage.Type textureImageType, TextureProfile textureProfile, boolean compress) throws TextureGeneratorException, IOException, CompileExceptionError {
+        List<TextureGenerator.GenerateResult> results;
+        try {
+            results = forEachPage(imageResources.size(), (index) -> generatePage(imageResources.get(index), pageMemory[index],
+                                                                                  cropSizes != null ? cropSizes[index] : null,
+                                                                                  textureProfile, compress));
+        } catch (TextureGeneratorException | IOException | CompileExceptionError e) {
+            throw e;
+        } catch (Exception e) {
+            throw toTextureGeneratorException(e);
+        }
+        return combinePages(results, textureImageType);
+    }
+
+    // Generates each page from its image resource, reusing previously generated pages from the cache.
+    // Only the pages missing from the cache are decoded. The keys are created with PageCache.key(),
+    // so identical page images (e.g. shared by several skin atlases) are only generated once.
+    // The indices of the pages that had to be generated are added to 'generatedPages' (if not null).
+    // If 'cropSizes' isn't null, each page image is cropped to its (width, height) first (see PageCrop).
+    static public TextureGenerator.GenerateResult createMultiPageTexture(List<IResource> imageResources, long[] pageMemory, List<String> pageKeys, PageCache cache, TextureImage.Type textureImageType, TextureProfile textureProfile, boolean compress, int[][] cropSizes, List<Integer> generatedPages) throws TextureGeneratorException, IOException, CompileExceptionError {
+        List<TextureGenerator.GenerateResult> results;
+        try {
+            results = forEachPage(imageResources.size(), (index) -> {
+                boolean[] generated = new boolean[1];
+                TextureGenerator.GenerateResult result = cache.getOrCreate(pageKeys.get(index),
+                                                                            () -> generatePage(imageResources.get(index), pageMemory[index],
+                                                                                               cropSizes != null ? cropSizes[index] : null,
+                                                                                               textureProfile, compress),
+                                                                            generated);
+                if (generated[0] && generatedPages != null) {
+                    synchronized (generatedPages) {
+                        generatedPages.add(index);
+                    }
+                }
+                return result;
+            });
+        } catch (TextureGeneratorException | IOException | CompileExceptionError e) {
+            throw e;
+        } catch (Exception e) {
+            throw toTextureGeneratorException(e);
+        }
+        return combinePages(results, textureImageType);
+    }
+
+    // The same steps as TextureUtil.createMultiPageTexture(), but with the pages generated concurrently
+    static public TextureGenerator.GenerateResult createMultiPageTexture(List<BufferedImage> images, TextureImage.Type textureImageType, TextureProfile textureProfile, boolean compress) throws TextureGeneratorException {
+        if (getPool() == null || images.size() < 2) {
+            return TextureUtil.createMultiPageTexture(images, textureImageType, textureProfile, compress);
+        }
+
+        List<TextureGenerator.GenerateResult> results;
+        try {
+            results = forEachPage(images.size(), (index) -> generatePage(images.get(index), textureProfile, compress));
+        } catch (TextureGeneratorException e) {
+            throw e;
+        } catch (Exception e) {
+            throw toTextureGeneratorException(e);
+        }
+        return TextureUtil.createCombinedTextureImage(results.toArray(new TextureGenerator.GenerateResult[0]), textureImageType);
+    }
+}
@@ -14,8 +14,28 @@ public class Plugin implements IPlugin {
 
     public void init(Project project) {
         TextureUtil.registerAtlasFileType(".tpatlas");
+
+        // The number of atlas pages decoded/generated concurrently (across all atlases)
+        PageTextures.setParallelism(project.getProjectProperties().getIntValue("texturepacker", "page_parallelism", 1));
+
+        // The max memory used by the decoded page images at once (across all atlases, in MB)
+        long pageMemory = project.getProjectProperties().getIntValue("texturepacker", "page_memory", 1024);
+        PageTextures.setMemoryBudget(pageMemory * 1024 * 1024);
+
+        // The max size of the generated page textures kept in the build folder (in MB)
+        long pageCacheSize = project.getProjectProperties().getIntValue("texturepacker", "page_cache_size", 512);
+        PageCache.init(project, pageCacheSize * 1024 * 1024);
+
+        // Write a json report with the time and memory spent in each phase of the atlas builds
+        BuildReport.init(project, project.getProjectProperties().getIntValue("texturepacker", "build_report", 0) != 0);
     }
 
     public void exit(Project project) {
+        InfoCache.shared().clear();
+        TextureSetCache.shared().clear();
+        PageTextures.setParallelism(1);
+        PageTextures.setMemoryBudget(0);
+        PageCache.exit();
+        BuildReport.exit();
     }
 }
@@ -0,0 +1,153 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.pipeline.tp.AtlasBuilder.MappedAnimDesc;
+import com.dynamo.bob.pipeline.tp.AtlasBuilder.MappedAnimIterator;
+import com.dynamo.bob.textureset.TextureSetGenerator;
+import com.dynamo.bob.textureset.TextureSetGenerator.TextureSetResult;
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.graphics.proto.Graphics.TextureImage;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+
+// The layout of a .tpinfo file, prepared once for the editor, and not modified afterwards.
+// The layout pages and triangles only depend on the .tpinfo and the mesh settings, so when the animations or
+// rename patterns of the .tpatlas change, apply() runs the texture set generator over a copy of the prepared
+// pages, without parsing and converting the .tpinfo again.
+public class PreparedLayout {
+    public final List<TextureSetLayout.Page>            pages;
+    public final List<String>                           frameIds;   // The original frame names
+    public final float[][]                              triangles;  // See EditorAtlas
+    public final int[][]                                triangleOffsets;
+
+    // The cropped pages (see PageCrop), for a 2D texture and for a texture array. Created when first used
+    private static class Crop {
+        int[][]                                         sizes;      // null if the pages can't be cropped
+        List<TextureSetLayout.Page>                     pages;      // The uncropped pages if they can't be cropped
+    }
+    private final Crop[]                                crops = new Crop[2];
+
+    private PreparedLayout(List<TextureSetLayout.Page> pages) {
+        this.pages = pages;
+        this.frameIds = AtlasBuilder.getFrameIds(pages);
+        this.triangleOffsets = new int[pages.size()][];
+        this.triangles = Atlas.getAtlasTriangles(pages, triangleOffsets);
+    }
+
+    // Used from editor
+    // The mesh settings are the ones from the .tpatlas (see AtlasBuilder.optimizeMeshes())
+    static public PreparedLayout create(String path, byte[] data_tpinfo, int maxSpriteVertices, float maxSpriteExtraArea) throws IOException {
+        List<TextureSetLayout.Page> pages = AtlasBuilder.createPages(Loader.load(data_tpinfo));
+        if (maxSpriteVertices > 0) {
+            pages = MeshOptimizer.optimize(pages, maxSpriteVertices, maxSpriteExtraArea, new MeshOptimizer.Stats());
+        }
+        return new PreparedLayout(pages);
+    }
+
+    private synchronized Crop getCrop(boolean isPagedAtlas) {
+        TextureImage.Type textureImageType = AtlasBuilder.getTextureImageType(isPagedAtlas, pages.size());
+        int index = textureImageType == TextureImage.Type.TYPE_2D_ARRAY ? 1 : 0;
+        if (crops[index] == null) {
+            Crop crop = new Crop();
+            crop.sizes = AtlasBuilder.getCropSizes(pages, textureImageType);
+            crop.pages = crop.sizes != null ? PageCrop.cropPages(pages, crop.sizes) : pages;
+            crops[index] = crop;
+        }
+        return crops[index];
+    }
+
+    // Each apply() gives the texture set generator its own copy of the pages, so that calls never share (or modify)
+    // the same objects. The images of a PageGeometry share its arrays, which are read only
+    static private List<TextureSetLayout.Page> copyPages(List<TextureSetLayout.Page> pages) {
+        List<TextureSetLayout.Page> out = new ArrayList<>(pages.size());
+        for (TextureSetLayout.Page page : pages) {
+            TextureSetLayout.Page copy = new TextureSetLayout.Page();
+            copy.index = page.index;
+            copy.name = page.name;
+            copy.size = new TextureSetLayout.Size(page.size.width, page.size.height);
+            copy.images = new ArrayList<>(page.images.size());
+            for (TextureSetLayout.SourceImage image : page.images) {
+                copy.images.add(copyImage(image));
+            }
+            out.add(copy);
+        }
+        return out;
+    }
+
+    static private TextureSetLayout.SourceImage copyImage(TextureSetLayout.SourceImage image) {
+        if (image instanceof PageGeometry.Image) {
+            PageGeometry.Image flat = (PageGeometry.Image)image;
+            return new PageGeometry.Image(flat.geometry, flat.sprite);
+        }
+        TextureSetLayout.SourceImage copy = new TextureSetLayout.SourceImage();
+        copy.setName(image.name);
+        copy.setRotated(image.rotated);
+        copy.setRect(new TextureSetLayout.Rectangle(image.rect.x, image.rect.y, image.rect.width, image.rect.height));
+        copy.setPivot(new TextureSetLayout.Point(image.pivot.x, image.pivot.y));
+        List<TextureSetLayout.Point> vertices = new ArrayList<>(image.vertices.size());
+        for (TextureSetLayout.Point p : image.vertices) {
+            vertices.add(new TextureSetLayout.Point(p.x, p.y));
+        }
+        copy.setVertices(vertices);
+        copy.setIndices(new ArrayList<>(image.indices));
+        return copy;
+    }
+
+    // Used from editor
+    // The size (width, height) of each cropped page, the same as bob uses for the "crop_pages" setting, or null if the pages can't be cropped.
+    // The editor crops the page images to these sizes (see PageCrop.crop())
+    public int[][] getCropSizes(boolean isPagedAtlas) {
+        return getCrop(isPagedAtlas).sizes;
+    }
+
+    // Used from editor
+    // Creates the texture set from the animations and rename patterns of the .tpatlas. The pages are copied, and the triangles are reused.
+    public EditorAtlas apply(String path, byte[] data_tpatlas, String texture) throws IOException {
+        AtlasDesc.Builder tpatlas = AtlasDesc.newBuilder().mergeFrom(data_tpatlas);
+        String renamePatterns = tpatlas.getRenamePatterns();
+        RenamePatterns renames;
+        try {
+            renames = new RenamePatterns(renamePatterns);
+        } catch (CompileExceptionError e) {
+            throw new RuntimeException(String.format("Couldn't transform frame ids using rename patterns '%s'", renamePatterns), e);
+        }
+
+        List<String> ids = renames.rename(frameIds);
+        FrameIndex frameIndex = new FrameIndex(ids);
+        List<MappedAnimDesc> animations = AtlasBuilder.createAnimations(tpatlas, ids, renames);
+
+        // The uvs of cropped pages use the cropped page sizes
+        int[][] cropSizes = null;
+        List<TextureSetLayout.Page> layoutPages = pages;
+        if (tpatlas.getCropPages()) {
+            Crop crop = getCrop(tpatlas.getIsPagedAtlas());
+            cropSizes = crop.sizes;
+            layoutPages = crop.pages;
+        }
+
+        List<TextureSetLayout.Layout> layouts = TextureSetLayout.createTextureSet(copyPages(layoutPages));
+        TextureSetResult result = TextureSetGenerator.createTextureSet(layouts, new MappedAnimIterator(animations, frameIndex));
+
+        EditorAtlas out = new EditorAtlas();
+        out.frameIds = ids;
+        out.pageImageNames = new ArrayList<>();
+        for (TextureSetLayout.Page page : pages) {
+            out.pageImageNames.add(page.name);
+        }
+        out.pages = pages;
+        out.textureSet = result.builder.setPageCount(pages.size())
+                                       .setTexture(texture)
+                                       .build();
+        out.uvTransforms = result.uvTransforms;
+        out.cropSizes = cropSizes;
+        out.triangles = triangles;
+        out.triangleOffsets = triangleOffsets;
+        return out;
+    }
+}
@@ -0,0 +1,70 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.pipeline.AtlasUtil;
+
+// The rename patterns of a .tpatlas ("from=to,from2=to2,..."), parsed and validated once.
+// Each id is only renamed once, and then looked up, since the animations refer to the same ids as the frames.
+// Not thread safe, create one per atlas.
+public class RenamePatterns {
+    private final String patterns;
+    private final String[][] parsed; // null if there are no patterns
+    private final Map<String, String> renamed = new HashMap<>();
+
+    public RenamePatterns(String patterns) throws CompileExceptionError {
+        this.patterns = patterns;
+        this.parsed = (patterns == null || patterns.isEmpty()) ? null : AtlasUtil.parsePatterns(patterns);
+    }
+
+    public String getPatterns() {
+        return patterns;
+    }
+
+    public boolean isEmpty() {
+        return parsed == null;
+    }
+
+    public String rename(String id) {
+        if (parsed == null) {
+            return id;
+        }
+        String result = renamed.get(id);
+        if (result == null) {
+            result = AtlasUtil.replaceStrings(parsed, id);
+            renamed.put(id, result);
+        }
+        return result;
+    }
+
+    public List<String> rename(List<String> ids) {
+        if (parsed == null) {
+            return new ArrayList<>(ids);
+        }
+        List<String> out = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            out.add(rename(id));
+        }
+        return out;
+    }
+
+    // Returns true if any of the ids would get a new name
+    public boolean changes(List<String> ids) {
+        if (parsed == null) {
+            return false;
+        }
+        for (String id : ids) {
+            if (!rename(id).equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
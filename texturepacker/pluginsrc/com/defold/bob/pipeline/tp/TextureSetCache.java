@@ -0,0 +1,158 @@
+// License MIT
+// Copyright 2023 Defold Foundation (www.defold.com)
+
+package com.dynamo.bob.pipeline.tp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.textureset.TextureSetLayout;
+import com.dynamo.gamesys.proto.TextureSetProto.TextureSet;
+import com.dynamo.texturepacker.proto.Atlas.AtlasAnimation;
+import com.dynamo.texturepacker.proto.Atlas.AtlasDesc;
+
+// A process wide cache of generated texture sets, without their texture path.
+// Atlases with the same sprite layout and animations (e.g. skins exported with the same
+// TexturePacker settings) get the same texture set, so it's only generated once per build.
+// Concurrent requests for the same key are only generated once.
+public class TextureSetCache {
+
+    static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024; // Total serialized size of the cached texture sets
+    static final int VERSION = 1;
+
+    static private final TextureSetCache shared = new TextureSetCache(DEFAULT_MAX_SIZE);
+
+    private static class Slot {
+        final FutureTask<TextureSet> task;
+        long size; // Known when the task is done
+
+        Slot(FutureTask<TextureSet> task) {
+            this.task = task;
+        }
+    }
+
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private final long maxSize;
+    private long totalSize;
+
+    public TextureSetCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    static public TextureSetCache shared() {
+        return shared;
+    }
+
+    // The key of the texture set of an atlas. The pages are the ones used for the layout,
+    // and the frame ids are the renamed ones.
+    static public String key(List<TextureSetLayout.Page> pages, List<String> frameIds, AtlasDesc.Builder builder, RenamePatterns renames, int pageCount) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeInt(pageCount);
+            for (TextureSetLayout.Page page : pages) {
+                out.writeUTF(PageHashes.create(page).geometryHash);
+            }
+            out.writeInt(frameIds.size());
+            for (String id : frameIds) {
+                out.writeUTF(id);
+            }
+            for (AtlasAnimation animation : builder.getAnimationsList()) {
+                out.writeUTF(animation.getId());
+                out.writeInt(animation.getImagesCount());
+                for (String image : animation.getImagesList()) {
+                    out.writeUTF(renames.rename(image));
+                }
+                out.writeUTF(animation.getPlayback().name());
+                out.writeInt(animation.getFps());
+                out.writeInt(animation.getFlipHorizontal());
+                out.writeInt(animation.getFlipVertical());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Not expected from a memory stream
+        }
+        return InfoCache.hash(bytes.toByteArray());
+    }
+
+    // Returns the cached texture set, or creates it. The 'shared' array (may be null) gets whether it was already cached.
+    public TextureSet get(String key, Callable<TextureSet> create, boolean[] shared) throws CompileExceptionError, IOException {
+        Slot slot;
+        boolean owner = false;
+        synchronized (this) {
+            slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot(new FutureTask<>(create));
+                slots.put(key, slot);
+                owner = true;
+            }
+        }
+        if (shared != null) {
+            shared[0] = !owner;
+        }
+
+        // The first requester creates the texture set, any other requesters wait for the result
+        if (owner) {
+            slot.task.run();
+        }
+
+        try {
+            TextureSet textureSet = slot.task.get();
+            if (owner) {
+                synchronized (this) {
+                    if (slots.get(key) == slot) {
+                        slot.size = textureSet.getSerializedSize();
+                        totalSize += slot.size;
+                        evict(key);
+                    }
+                }
+            }
+            return textureSet;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the texture set", e);
+        } catch (ExecutionException e) {
+            // Don't keep the failed result around
+            synchronized (this) {
+                if (slots.remove(key, slot)) {
+                    totalSize -= slot.size;
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof CompileExceptionError) {
+                throw (CompileExceptionError)cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Removes the least recently used entries until we're within budget.
+    // Entries still being created are left alone, as is the one we just added.
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Slot>> it = slots.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Slot> e = it.next();
+            Slot slot = e.getValue();
+            if (e.getKey().equals(keep) || !slot.task.isDone())
+                continue;
+            it.remove();
+            totalSize -= slot.size;
+        }
+    }
+
+    public synchronized void clear() {
+        slots.clear();
+        totalSize = 0;
+    }
+}
@@ -0,0 +1,19 @@
+#!/usr/bin/env bash
+
+# Builds the texture sets of all .tpatlas/.tpinfo files in one jvm, and reports the throughput and latencies
+#   ./utils/batch_build.sh [--threads n] [--warmup n] [--root dir] (file|dir)...
+
+set -e
+
+LIBNAME=TexturePackerExt
+CLASS_NAME=com.dynamo.bob.pipeline.tp.BatchBuilder
+JAR=./texturepacker/plugins/share/plugin${LIBNAME}.jar
+
+SCRIPT_DIR=$( cd -- "$( dirname -- "${BASH_SOURCE[0]}" )" &> /dev/null && pwd )
+pushd $SCRIPT_DIR/.. > /dev/null
+
+if [ "" == "${BOB}" ]; then
+    BOB=~/work/defold/tmp/dynamo_home/share/java/bob.jar
+fi
+
+java -cp ${BOB}:${JAR} ${CLASS_NAME} $*
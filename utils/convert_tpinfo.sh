@@ -0,0 +1,20 @@
+#!/usr/bin/env bash
+
+# Converts a .tpinfo file to the binary encoding (or back, using --text)
+#   ./utils/convert_tpinfo.sh [--text] input.tpinfo output.tpinfo
+# An existing text .tpinfo is never overwritten with a binary one, since the editor can't open those
+
+set -e
+
+LIBNAME=TexturePackerExt
+CLASS_NAME=com.dynamo.bob.pipeline.tp.Converter
+JAR=./texturepacker/plugins/share/plugin${LIBNAME}.jar
+
+SCRIPT_DIR=$( cd -- "$( dirname -- "${BASH_SOURCE[0]}" )" &> /dev/null && pwd )
+pushd $SCRIPT_DIR/.. > /dev/null
+
+if [ "" == "${BOB}" ]; then
+    BOB=~/work/defold/tmp/dynamo_home/share/java/bob.jar
+fi
+
+java -cp ${BOB}:${JAR} ${CLASS_NAME} $*
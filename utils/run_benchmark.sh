@@ -0,0 +1,35 @@
+#!/usr/bin/env bash
+
+# Runs the JMH benchmarks for the tpinfo -> TextureSet pipeline
+#   ./utils/run_benchmark.sh [jmh options]
+# E.g. run only the loading benchmarks, for the largest atlases:
+#   ./utils/run_benchmark.sh "PipelineBenchmark.load.*" -p spriteCount=100000
+
+set -e
+
+SCRIPT_DIR=$( cd -- "$( dirname -- "${BASH_SOURCE[0]}" )" &> /dev/null && pwd )
+pushd $SCRIPT_DIR/.. > /dev/null
+
+if [ "" == "${BOB}" ]; then
+    BOB=${DYNAMO_HOME}/share/java/bob.jar
+fi
+
+JAR=./texturepacker/plugins/share/pluginTexturePackerExt.jar
+
+echo "BOB=${BOB}"
+echo "JAR=${JAR}"
+
+# The protobuf classes come from the plugin jar
+for proto in ./texturepacker/pluginsrc/*.proto; do
+    if [ "$proto" -nt "$JAR" ]; then
+        echo "WARNING: $proto is newer than the plugin jar. Rebuild the plugin with ./utils/build_plugins.sh"
+    fi
+done
+
+mvn -q -f benchmark/pom.xml -Dbob.jar=${BOB} package
+
+# The benchmark classes come first, so they override the (possibly older) plugin classes in the jar
+CLASSPATH=./benchmark/target/classes:./benchmark/target/lib/*:${BOB}:${JAR}
+
+# -prof gc reports the allocation rates
+java -cp "${CLASSPATH}" org.openjdk.jmh.Main -prof gc $*
@@ -0,0 +1,20 @@
+#!/usr/bin/env bash
+
+# Watches the atlases of a project, and rebuilds the texture sets of the changed ones in a warm jvm
+#   ./utils/watch_atlases.sh [--threads n] [--warmup n] [--debounce ms] [--textures] [--root dir] (file|dir)...
+#   Stop it with Ctrl+C
+
+set -e
+
+LIBNAME=TexturePackerExt
+CLASS_NAME=com.dynamo.bob.pipeline.tp.AtlasWatcher
+JAR=./texturepacker/plugins/share/plugin${LIBNAME}.jar
+
+SCRIPT_DIR=$( cd -- "$( dirname -- "${BASH_SOURCE[0]}" )" &> /dev/null && pwd )
+pushd $SCRIPT_DIR/.. > /dev/null
+
+if [ "" == "${BOB}" ]; then
+    BOB=~/work/defold/tmp/dynamo_home/share/java/bob.jar
+fi
+
+java -cp ${BOB}:${JAR} ${CLASS_NAME} $*